@@ -0,0 +1,30 @@
+#!/bin/sh
+# Builds a class data sharing (AppCDS) archive of the game libraries plus the bot, so a client JVM starts
+# with those classes already parsed and verified. Needs a JDK 13 or newer to build (-XX:ArchiveClassesAtExit).
+#
+#   ./build-cds.sh        writes cds/PlayerAI.jar and cds/PlayerAI.jsa
+#
+# Then start the client with exactly the class path printed at the end, plus the archive:
+#   java -XX:SharedArchiveFile=cds/PlayerAI.jsa -classpath <that class path> RunClient -c <preset> -u <uuid>
+# ParameterTuner run with that class path picks the archive up by itself.
+#
+# CDS can't archive classes from a directory, which is why the bot is jarred up, and why this doesn't help
+# the launcher's own client (it runs the bot out of a directory). The JVM quietly ignores an archive that
+# doesn't match the class path, so rebuild it whenever the bot or the libraries change.
+set -e
+cd "$(dirname "$0")"
+LIB="$(pwd)/Cyber Team Zero/Libraries"
+OUT="$(pwd)/cds"
+CLASS_PATH="$OUT/PlayerAI.jar:$LIB/*"
+
+rm -rf "$OUT"
+mkdir -p "$OUT/classes"
+javac -source 8 -target 8 -Xlint:-options -nowarn -classpath "$LIB/*" -d "$OUT/classes" src/*.java
+cp src/PlayerAI.json "$OUT/classes/"
+jar cf "$OUT/PlayerAI.jar" -C "$OUT/classes" .
+rm -rf "$OUT/classes"
+
+# the training run is just the constructor's warm-up, which goes through everything a turn does
+java -XX:ArchiveClassesAtExit="$OUT/PlayerAI.jsa" -Xlog:cds=error -classpath "$CLASS_PATH" PlayerAI
+
+echo "Built $OUT/PlayerAI.jsa for class path $CLASS_PATH"
@@ -0,0 +1,402 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import com.orbischallenge.communication.sides.Side;
+import com.orbischallenge.ctz.mapping.NavigationCache;
+import com.orbischallenge.ctz.objects.CTZTileWorld;
+import com.orbischallenge.ctz.objects.EnemyUnit;
+import com.orbischallenge.ctz.objects.FriendlyUnit;
+import com.orbischallenge.ctz.objects.World;
+import com.orbischallenge.ctz.objects.cores.UnitCore;
+import com.orbischallenge.ctz.objects.enums.Direction;
+import com.orbischallenge.ctz.objects.enums.PickupType;
+import com.orbischallenge.ctz.objects.enums.Team;
+import com.orbischallenge.ctz.objects.enums.TileType;
+import com.orbischallenge.ctz.objects.enums.UnitAction;
+import com.orbischallenge.ctz.objects.enums.UnitCallSign;
+import com.orbischallenge.ctz.objects.enums.WeaponType;
+import com.orbischallenge.ctz.server.mapping.BitmapWorldProvider;
+import com.orbischallenge.game.engine.Point;
+
+/**
+ * Generates random maps bigger and busier than the ones that ship with the game, and times PlayerAI on them.
+ *
+ * For every combination of the sizes, wall densities, pickup counts and control point counts below, a map is
+ * drawn in the same format as Maps/*.png and compiled with Maps/CTZ-MapCompiler.jar, both into Benchmark/
+ * (so ParameterTuner doesn't pick them up). Then PlayerAI plays it in-process against enemies that wander
+ * at random. Reported on stdout and in Benchmark/results.csv are the time and heap it takes to build
+ * PlayerAI's map tables, the first turn after that, the average and worst later turns, and the heap left
+ * in use at the end (tables included).
+ *
+ * The map compiler stores a direction for every pair of squares, and takes minutes on a 50x50 map. A map it
+ * doesn't finish within COMPILE_TIMEOUT_MS is played without a NavigationCache, like a client that has
+ * none would, and no bigger map is sent to it after that.
+ *
+ * PlayerAI shares map tables between games on maps with the same walls, so they're forgotten before each
+ * map, and every map builds its own. The warm-up is run once at the start rather than for every map.
+ *
+ * Run from anywhere with the compiled bot and the game libraries on the classpath:
+ *   java -cp bin:"Cyber Team Zero/Libraries/*" MapBenchmark "Cyber Team Zero" [turns per map] [sizes, comma separated]
+ *
+ * Unlike ParameterTuner, nothing here needs the server, so no display either.
+ */
+public class MapBenchmark {
+
+	final static String WORK_DIR_NAME = "Benchmark";
+	final static String RESULTS_FILE_NAME = "results.csv";
+
+	final static int[] SIZES = { 50, 100, 200, 300 };
+	final static double[] WALL_DENSITIES = { 0.1, 0.3 }; // fraction of the inside that is wall, roughly
+	final static int[] PICKUP_COUNTS = { 4, 32 };
+	final static int[] CONTROL_POINT_COUNTS = { 2, 8 }; // neutral ones, plus one mainframe per team
+
+	final static int DEFAULT_TURNS = 50;
+	final static int MAX_WALL_LENGTH = 8;
+	final static int MAX_ATTEMPTS = 20; // at drawing a map where the two teams can reach each other
+	final static long SEED = 2016;
+	final static long COMPILE_TIMEOUT_MS = 60000;
+
+	// pixel colours, as BitmapPixelInfo reads them
+	final static int WALL = Color.BLACK.getRGB();
+	final static int FLOOR = Color.WHITE.getRGB();
+	final static int NEUTRAL_CONTROL_POINT = Color.GRAY.getRGB();
+	final static int AMBER_MAINFRAME = Color.RED.getRGB();
+	final static int BLUE_MAINFRAME = Color.GREEN.getRGB();
+	final static int[] AMBER_SPAWNS = { new Color(255, 255, 0).getRGB(), new Color(255, 255, 50).getRGB(), new Color(255, 255, 100).getRGB(), new Color(255, 255, 150).getRGB() };
+	final static int[] BLUE_SPAWNS = { new Color(0, 0, 255).getRGB(), new Color(0, 50, 255).getRGB(), new Color(0, 100, 255).getRGB(), new Color(0, 150, 255).getRGB() };
+
+	final static int NUM_UNITS = 4;
+
+	private final File maps_dir;
+	private final File work_dir;
+	private final int num_turns;
+	private PlayerAI last_ai; // kept until the heap has been measured
+
+	public MapBenchmark(File ctz_dir, int num_turns) {
+		this.maps_dir = new File(ctz_dir, "Maps");
+		this.work_dir = new File(ctz_dir, WORK_DIR_NAME);
+		this.num_turns = num_turns;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: MapBenchmark <Cyber Team Zero directory> [turns per map] [sizes, comma separated]");
+			System.exit(1);
+		}
+		final int num_turns = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TURNS;
+		int[] sizes = SIZES;
+		if (args.length > 2) {
+			final String[] parts = args[2].split(",");
+			sizes = new int[parts.length];
+			for (int i = 0; i < parts.length; ++i) {
+				sizes[i] = Integer.parseInt(parts[i].trim());
+			}
+		}
+
+		Side.setCurrentSide(Side.CLIENT);
+		PlayerAI.warmUp();
+		new MapBenchmark(new File(args[0]).getAbsoluteFile(), num_turns).run(sizes);
+	}
+
+	public void run(int[] sizes) throws IOException, InterruptedException {
+		work_dir.mkdirs();
+		final File results_file = new File(work_dir, RESULTS_FILE_NAME);
+		try (Writer results = new OutputStreamWriter(new FileOutputStream(results_file), "UTF-8")) {
+			results.write("map,size,wall_density,pickups,control_points,nac_bytes,tables_ms,tables_mb,first_turn_ms,mean_turn_ms,worst_turn_ms,heap_mb\n");
+			System.out.println(String.format("%-28s %9s %10s %10s %10s %9s %9s %8s", "map", "nac KB", "tables ms", "tables MB", "first ms", "mean ms", "worst ms", "heap MB"));
+
+			int smallest_uncompilable = Integer.MAX_VALUE;
+			for (int size : sizes) {
+				for (double wall_density : WALL_DENSITIES) {
+					for (int num_pickups : PICKUP_COUNTS) {
+						for (int num_control_points : CONTROL_POINT_COUNTS) {
+							final String name = String.format(Locale.ROOT, "bench_%d_w%02d_p%d_c%d", size, Math.round(wall_density * 100), num_pickups, num_control_points);
+							final File png = new File(work_dir, name + ".png");
+							final File nac = new File(work_dir, name + ".nac");
+							if (!nac.exists()) {
+								ImageIO.write(generate(size, wall_density, num_pickups, num_control_points, new Random(SEED + size)), "png", png);
+								if (size < smallest_uncompilable && !compile(png)) {
+									System.out.println("Couldn't compile " + png.getName() + " in time, playing it without a NavigationCache");
+									smallest_uncompilable = size;
+								}
+							}
+
+							final Result r = play(png, nac.exists() ? nac : null);
+							System.out.println(String.format(Locale.ROOT, "%-28s %9s %10.1f %10.1f %10.1f %9.2f %9.2f %8.1f",
+								name, nac.exists() ? Long.toString(nac.length() / 1024) : "-", r.tables_ms, r.tables_mb, r.first_turn_ms, r.mean_turn_ms, r.worst_turn_ms, r.heap_mb));
+							results.write(String.format(Locale.ROOT, "%s,%d,%.2f,%d,%d,%d,%.3f,%.1f,%.3f,%.3f,%.3f,%.1f\n",
+								name, size, wall_density, num_pickups, num_control_points, nac.length(), r.tables_ms, r.tables_mb, r.first_turn_ms, r.mean_turn_ms, r.worst_turn_ms, r.heap_mb));
+							results.flush();
+						}
+					}
+				}
+			}
+		}
+		System.out.println("Results are in " + results_file);
+	}
+
+	// A walled square with amber spawns in the top left corner and blue in the bottom right, scattered with
+	// short walls, then control points and pickups on random floor that both teams can reach.
+	static BufferedImage generate(int size, double wall_density, int num_pickups, int num_control_points, Random random) {
+		for (int attempt = 1; ; ++attempt) {
+			final int[][] pixels = new int[size][size];
+			for (int x = 0; x < size; ++x) {
+				for (int y = 0; y < size; ++y) {
+					final boolean is_border = x == 0 || y == 0 || x == size - 1 || y == size - 1;
+					pixels[x][y] = is_border ? WALL : FLOOR;
+				}
+			}
+
+			final Point[] amber_spawns = { new Point(1, 1), new Point(2, 1), new Point(1, 2), new Point(2, 2) };
+			final Point[] blue_spawns = new Point[NUM_UNITS];
+			for (int i = 0; i < NUM_UNITS; ++i) {
+				blue_spawns[i] = new Point(size - 1 - amber_spawns[i].getX(), size - 1 - amber_spawns[i].getY());
+			}
+
+			// straight runs of wall, until enough of the inside is covered
+			final int inside = (size - 2) * (size - 2);
+			int num_walls = 0;
+			while (num_walls < wall_density * inside) {
+				final boolean is_horizontal = random.nextBoolean();
+				final int length = 1 + random.nextInt(MAX_WALL_LENGTH);
+				int x = 1 + random.nextInt(size - 2);
+				int y = 1 + random.nextInt(size - 2);
+				for (int i = 0; i < length && x < size - 1 && y < size - 1; ++i) {
+					if (pixels[x][y] == FLOOR && !isNearSpawn(x, y, size)) {
+						pixels[x][y] = WALL;
+						++num_walls;
+					}
+					if (is_horizontal) {
+						++x;
+					} else {
+						++y;
+					}
+				}
+			}
+
+			// walls off what amber can't get to, so nothing gets put there
+			final boolean[][] reachable = reachableFrom(amber_spawns[0], pixels);
+			if (!reachable[blue_spawns[0].getX()][blue_spawns[0].getY()]) {
+				if (attempt == MAX_ATTEMPTS) {
+					throw new IllegalStateException("Couldn't draw a connected " + size + "x" + size + " map at wall density " + wall_density);
+				}
+				continue;
+			}
+			final ArrayList<Point> floor = new ArrayList<>();
+			for (int x = 0; x < size; ++x) {
+				for (int y = 0; y < size; ++y) {
+					if (!reachable[x][y]) {
+						pixels[x][y] = WALL;
+					} else if (!isNearSpawn(x, y, size)) {
+						floor.add(new Point(x, y));
+					}
+				}
+			}
+
+			for (int i = 0; i < NUM_UNITS; ++i) {
+				pixels[amber_spawns[i].getX()][amber_spawns[i].getY()] = AMBER_SPAWNS[i];
+				pixels[blue_spawns[i].getX()][blue_spawns[i].getY()] = BLUE_SPAWNS[i];
+			}
+
+			Collections.shuffle(floor, random);
+			int next_floor = 0;
+			final Point amber_mainframe = floor.get(next_floor++);
+			pixels[amber_mainframe.getX()][amber_mainframe.getY()] = AMBER_MAINFRAME;
+			final Point blue_mainframe = floor.get(next_floor++);
+			pixels[blue_mainframe.getX()][blue_mainframe.getY()] = BLUE_MAINFRAME;
+			for (int i = 0; i < num_control_points && next_floor < floor.size(); ++i) {
+				final Point p = floor.get(next_floor++);
+				pixels[p.getX()][p.getY()] = NEUTRAL_CONTROL_POINT;
+			}
+			// a pickup is a floor pixel whose alpha is one more than the pickup type's ordinal
+			final PickupType[] pickup_types = PickupType.values();
+			for (int i = 0; i < num_pickups && next_floor < floor.size(); ++i) {
+				final Point p = floor.get(next_floor++);
+				pixels[p.getX()][p.getY()] = ((1 + i % pickup_types.length) << 24) | (FLOOR & 0xFFFFFF);
+			}
+
+			final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+			for (int x = 0; x < size; ++x) {
+				for (int y = 0; y < size; ++y) {
+					image.setRGB(x, y, pixels[x][y]);
+				}
+			}
+			return image;
+		}
+	}
+
+	// keeps the 2x2 spawn corners (and the ring around them) clear
+	private static boolean isNearSpawn(int x, int y, int size) {
+		return (x <= 3 && y <= 3) || (x >= size - 4 && y >= size - 4);
+	}
+
+	private static boolean[][] reachableFrom(Point start, int[][] pixels) {
+		final int size = pixels.length;
+		final boolean[][] reachable = new boolean[size][size];
+		final ArrayDeque<Point> queue = new ArrayDeque<>();
+		reachable[start.getX()][start.getY()] = true;
+		queue.add(start);
+		while (!queue.isEmpty()) {
+			final Point p = queue.poll();
+			// only orthogonal steps, so nothing depends on whether diagonals can squeeze between walls
+			final int[][] steps = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } };
+			for (int[] step : steps) {
+				final int x = p.getX() + step[0];
+				final int y = p.getY() + step[1];
+				if (pixels[x][y] != WALL && !reachable[x][y]) {
+					reachable[x][y] = true;
+					queue.add(new Point(x, y));
+				}
+			}
+		}
+		return reachable;
+	}
+
+	// the same as Maps/CompileMap.sh, which leaves the .nac next to the .png
+	private boolean compile(File png) throws IOException, InterruptedException {
+		final File log = new File(work_dir, png.getName() + ".log");
+		final Process p = new ProcessBuilder("java", "-jar", new File(maps_dir, "CTZ-MapCompiler.jar").getPath(), png.getName())
+			.directory(work_dir).redirectErrorStream(true).redirectOutput(log).start();
+		if (!p.waitFor(COMPILE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+			p.destroyForcibly().waitFor();
+			new File(work_dir, png.getName().replace(".png", ".nac")).delete();
+			return false;
+		}
+		if (p.exitValue() != 0) {
+			return false;
+		}
+		log.delete();
+		return true;
+	}
+
+	private static final class Result {
+		double tables_ms;
+		double tables_mb;
+		double first_turn_ms;
+		double mean_turn_ms;
+		double worst_turn_ms;
+		double heap_mb;
+	}
+
+	// Amber is PlayerAI, and its moves are carried out; blue wanders. Nobody shoots or picks anything up,
+	// which is plenty to exercise the planning that grows with the map. nac may be null.
+	private Result play(File png, File nac) throws IOException {
+		final Runtime runtime = Runtime.getRuntime();
+		if (last_ai != null) {
+			last_ai.close();
+			last_ai = null;
+		}
+		PlayerAI.forgetMapTables();
+		NavigationCache.clear();
+		System.gc();
+		final long heap_before = runtime.totalMemory() - runtime.freeMemory();
+
+		final CTZTileWorld tile_world;
+		try {
+			tile_world = new BitmapWorldProvider(png.getPath()).createWorld();
+		} catch (Exception e) {
+			throw new IOException("Couldn't load " + png, e);
+		}
+		if (nac != null) {
+			NavigationCache.loadCompiledData(nac.getPath());
+		}
+
+		final Random random = new Random(SEED);
+		// the bot's debug prints would be timed along with everything else
+		final PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() { @Override public void write(int b) { } }));
+		try {
+			// built here, rather than on the first turn, so they can be reported on their own
+			System.gc();
+			final long heap_before_tables = runtime.totalMemory() - runtime.freeMemory();
+			final long tables_start = System.nanoTime();
+			PlayerAI.prepareMapTables(new World(tile_world, new EnemyUnit[0]));
+			final double tables_ms = (System.nanoTime() - tables_start) / 1e6;
+			System.gc();
+			final double tables_mb = (runtime.totalMemory() - runtime.freeMemory() - heap_before_tables) / (1024.0 * 1024.0);
+
+			last_ai = new PlayerAI();
+			final Result result = play(last_ai, tile_world, random, heap_before);
+			result.tables_ms = tables_ms;
+			result.tables_mb = tables_mb;
+			return result;
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	private Result play(PlayerAI ai, CTZTileWorld tile_world, Random random, long heap_before) {
+		final Runtime runtime = Runtime.getRuntime();
+		final UnitCore[] friendly_cores = new UnitCore[NUM_UNITS];
+		final UnitCore[] enemy_cores = new UnitCore[NUM_UNITS];
+		for (int i = 0; i < NUM_UNITS; ++i) {
+			friendly_cores[i] = new UnitCore(Team.AMBER, UnitCallSign.values()[i]);
+			enemy_cores[i] = new UnitCore(Team.BLUE, UnitCallSign.values()[i]);
+			friendly_cores[i].setPosition(tile_world.getSpawnPoint(Team.AMBER, i));
+			enemy_cores[i].setPosition(tile_world.getSpawnPoint(Team.BLUE, i));
+			for (UnitCore core : Arrays.asList(friendly_cores[i], enemy_cores[i])) {
+				core.health = 30;
+				core.weaponType = WeaponType.MINI_BLASTER;
+				core.numShields = 1;
+			}
+		}
+
+		final Result result = new Result();
+		long total_ns = 0;
+		for (int turn = 0; turn < num_turns; ++turn) {
+			final EnemyUnit[] enemy_units = new EnemyUnit[NUM_UNITS];
+			for (int i = 0; i < NUM_UNITS; ++i) {
+				enemy_units[i] = new EnemyUnit(enemy_cores[i]);
+			}
+			final World world = new World(tile_world, enemy_units);
+			final FriendlyUnit[] friendly_units = new FriendlyUnit[NUM_UNITS];
+			for (int i = 0; i < NUM_UNITS; ++i) {
+				friendly_units[i] = new FriendlyUnit(friendly_cores[i], tile_world, world, enemy_units);
+			}
+
+			final long start = System.nanoTime();
+			ai.doMove(world, enemy_units, friendly_units);
+			final long elapsed_ns = System.nanoTime() - start;
+
+			if (turn == 0) {
+				result.first_turn_ms = elapsed_ns / 1e6;
+			} else {
+				total_ns += elapsed_ns;
+				result.worst_turn_ms = Math.max(result.worst_turn_ms, elapsed_ns / 1e6);
+			}
+
+			for (int i = 0; i < NUM_UNITS; ++i) {
+				final UnitCore friendly = friendly_cores[i];
+				if (friendly.nextAction == UnitAction.MOVE && friendly.nextActionTarget != null && tile_world.getTile(friendly.nextActionTarget) != TileType.WALL) {
+					friendly.setPosition(friendly.nextActionTarget);
+				}
+				final Point p = enemy_cores[i].getPosition();
+				final Direction d = Direction.values()[1 + random.nextInt(Direction.values().length - 1)];
+				if (tile_world.canPassFromPointInDirection(p, d, false, false)) {
+					enemy_cores[i].setPosition(d.movePoint(p));
+				}
+			}
+		}
+		result.mean_turn_ms = num_turns > 1 ? total_ns / 1e6 / (num_turns - 1) : 0;
+
+		System.gc();
+		result.heap_mb = (runtime.totalMemory() - runtime.freeMemory() - heap_before) / (1024.0 * 1024.0);
+		return result;
+	}
+}
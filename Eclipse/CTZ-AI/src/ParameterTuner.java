@@ -0,0 +1,500 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Offline genetic search over PlayerAI.Parameters.
+ *
+ * Every candidate parameter set plays the current parameters (whatever PlayerAI.json / the defaults say)
+ * on every compiled map in Maps/, once from each side, using the local server and client from Libraries/.
+ * Matches run concurrently, each on its own port. A match is three JVMs (the server and two clients), so by
+ * default there are a third as many at a time as there are cores; more and the clients start missing the
+ * response time limit. Ports are reused from a pool of twice as many as there are matches at a time, so the
+ * one a match just closed has a while to be released. A candidate's fitness is its average score lead over
+ * the baseline, read back from Results/.
+ * The population is checkpointed after each generation, and a restarted run picks up from the checkpoint.
+ *
+ * Run from anywhere with the compiled bot and the game libraries on the classpath:
+ *   java -cp bin:"Cyber Team Zero/Libraries/*" ParameterTuner "Cyber Team Zero" [generations] [population] [parallel matches]
+ *
+ * If the bot is run out of cds/PlayerAI.jar and build-cds.sh has put an archive next to it, the clients
+ * start from that archive.
+ *
+ * The server loads its sprites even with -nogui, so it needs a display (a virtual one is fine).
+ */
+public class ParameterTuner {
+
+	final static String WORK_DIR_NAME = "Tuning";
+	final static String CHECKPOINT_FILE_NAME = "checkpoint.json";
+	final static String BEST_FILE_NAME = "best.json";
+
+	final static int FIRST_PORT = 5000;
+	final static int NUM_ELITE = 2;
+	final static int TOURNAMENT_SIZE = 3;
+	final static double MUTATION_RATE = 0.3;
+	final static double MUTATION_SIZE = 0.15; // std. dev., as a fraction of the range
+	final static long SERVER_START_TIMEOUT_MS = 30000;
+
+	// name of a field in PlayerAI.Parameters, and the range to search it over
+	private static final class Knob {
+		final String name;
+		final double min;
+		final double max;
+
+		Knob(String name, double min, double max) {
+			this.name = name;
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	final static Knob[] KNOBS = {
+		new Knob("danger_val", 5.0, 20.0),
+		new Knob("caution_val", 1.0, 10.0),
+		new Knob("aggressive", 0.0, 1.0), // boolean, true above 0.5
+		new Knob("mainframe_multiplier", 0.7, 1.6),
+		new Knob("flag_multiplier", 0.7, 1.6),
+		new Knob("enemy_owned_bonus", 0.0, 0.3),
+		new Knob("contested_penalty", 0.0, 0.5),
+		new Knob("contested_distance", 1, 12),
+		new Knob("shoot_multiplier", 0.8, 2.0),
+		new Knob("pickup_best_multiplier", 0.5, 1.2),
+		new Knob("pickup_worst_multiplier", 1.2, 4.0),
+		new Knob("shield_value", 0.1, 1.0),
+		new Knob("detour_value", 0.1, 1.0),
+		new Knob("detour_distance", 0, 5),
+		new Knob("heavy_damage_fraction", 0.2, 1.0),
+	};
+
+	// what gets written to the checkpoint file
+	private static final class Checkpoint {
+		int generation = 0;
+		double[][] population;
+		double[] fitnesses; // null until the generation has been evaluated
+		double[] best_genome;
+		double best_fitness = Double.NEGATIVE_INFINITY;
+	}
+
+	private final File ctz_dir;
+	private final File work_dir;
+	private final String bot_class_path;
+	private final File class_data_archive; // null if there isn't one
+	private final String[] map_names;
+	private final JsonObject preset_template;
+	private final File baseline_params_file;
+	private final ExecutorService match_runner;
+	private final BlockingQueue<Integer> free_ports = new LinkedBlockingQueue<>(); // least recently used first
+	private final AtomicInteger next_match_id = new AtomicInteger(0);
+	private final AtomicInteger next_params_id = new AtomicInteger(0);
+	private final Random random = new Random();
+	private final Gson gson = new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create();
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: ParameterTuner <Cyber Team Zero dir> [generations] [population] [parallel matches]");
+			System.exit(1);
+		}
+		final int num_generations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		final int population_size = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		final int num_parallel = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 3);
+
+		ParameterTuner tuner = new ParameterTuner(new File(args[0]), num_parallel);
+		try {
+			tuner.run(num_generations, population_size);
+		} finally {
+			tuner.match_runner.shutdownNow();
+		}
+	}
+
+	public ParameterTuner(File ctz_dir, int num_parallel) throws IOException, InterruptedException {
+		this.ctz_dir = ctz_dir.getAbsoluteFile();
+		this.work_dir = new File(this.ctz_dir, WORK_DIR_NAME);
+		new File(work_dir, "logs").mkdirs();
+
+		final File bot_location;
+		try {
+			bot_location = new File(PlayerAI.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsoluteFile();
+		} catch (URISyntaxException e) {
+			throw new IOException("Can't tell where PlayerAI was loaded from", e);
+		}
+		this.bot_class_path = bot_location.getPath()
+			+ File.pathSeparator + new File(this.ctz_dir, "Libraries").getAbsolutePath() + File.separator + "*";
+		final File archive = new File(bot_location.getParentFile(), "PlayerAI.jsa");
+		this.class_data_archive = bot_location.isFile() && archive.isFile() ? archive : null;
+		this.map_names = compileMaps(new File(this.ctz_dir, "Maps"));
+		this.preset_template = loadJson(new File(this.ctz_dir, "MatchPresets/Default.json"));
+		this.baseline_params_file = writeParams(PlayerAI.Parameters.load(), "baseline");
+		this.match_runner = Executors.newFixedThreadPool(num_parallel);
+		for (int port = FIRST_PORT; port < FIRST_PORT + 2 * num_parallel; ++port) {
+			free_ports.add(port);
+		}
+
+		System.out.printf("Tuning on %d maps, %d matches at a time\n", map_names.length, num_parallel);
+	}
+
+	public void run(int num_generations, int population_size) throws Exception {
+		final File checkpoint_file = new File(work_dir, CHECKPOINT_FILE_NAME);
+		Checkpoint state;
+		if (checkpoint_file.exists()) {
+			try (Reader reader = new InputStreamReader(new FileInputStream(checkpoint_file), "UTF-8")) {
+				state = gson.fromJson(reader, Checkpoint.class);
+			}
+			System.out.printf("Resuming from generation %d\n", state.generation);
+			if (state.population.length != population_size) {
+				System.out.printf("The checkpoint has a population of %d, resizing it to %d\n", state.population.length, population_size);
+				state.population = resize(state.population, population_size);
+				state.fitnesses = null;
+			}
+		} else {
+			state = new Checkpoint();
+			state.population = new double[population_size][];
+			state.population[0] = genomeOf(PlayerAI.Parameters.load()); // start from what we have
+			for (int i = 1; i < population_size; ++i) {
+				state.population[i] = mutate(state.population[0], 1.0);
+			}
+		}
+
+		while (state.generation < num_generations) {
+			if (state.fitnesses == null) {
+				state.fitnesses = evaluate(state.population);
+			}
+
+			for (int i = 0; i < state.population.length; ++i) {
+				if (state.fitnesses[i] > state.best_fitness) {
+					state.best_fitness = state.fitnesses[i];
+					state.best_genome = state.population[i];
+					writeParams(paramsOf(state.best_genome), BEST_FILE_NAME);
+				}
+			}
+			System.out.printf("Generation %d: best %.2f, mean %.2f, best so far %.2f\n",
+				state.generation, max(state.fitnesses), mean(state.fitnesses), state.best_fitness);
+
+			state.population = breed(state.population, state.fitnesses);
+			state.fitnesses = null;
+			++state.generation;
+			saveCheckpoint(state, checkpoint_file);
+		}
+
+		System.out.println("Best parameters are in " + new File(work_dir, BEST_FILE_NAME));
+	}
+
+	// Plays every genome against the baseline on every map, from both sides, all at once.
+	private double[] evaluate(double[][] population) throws IOException, InterruptedException, ExecutionException, ReflectiveOperationException {
+		final List<List<Future<Integer>>> leads = new ArrayList<>(population.length);
+		for (double[] genome : population) {
+			final File params_file = writeParams(paramsOf(genome), "candidate-" + next_params_id.getAndIncrement());
+			final List<Future<Integer>> genome_leads = new ArrayList<>();
+			for (final String map_name : map_names) {
+				genome_leads.add(match_runner.submit(new Match(map_name, params_file, baseline_params_file, 0)));
+				genome_leads.add(match_runner.submit(new Match(map_name, baseline_params_file, params_file, 1)));
+			}
+			leads.add(genome_leads);
+		}
+
+		final double[] fitnesses = new double[population.length];
+		int num_failed = 0;
+		for (int i = 0; i < population.length; ++i) {
+			int num_played = 0;
+			for (Future<Integer> lead : leads.get(i)) {
+				Integer result = lead.get();
+				if (result != null) {
+					fitnesses[i] += result;
+					++num_played;
+				}
+			}
+			num_failed += leads.get(i).size() - num_played;
+			fitnesses[i] = num_played == 0 ? Double.NEGATIVE_INFINITY : fitnesses[i] / num_played;
+		}
+		if (num_failed > 0) {
+			System.out.printf("%d matches didn't finish, see %s\n", num_failed, new File(work_dir, "logs"));
+		}
+		return fitnesses;
+	}
+
+	// One game on the local server. Returns how far the candidate finished ahead of the baseline, or null if the game failed.
+	private final class Match implements Callable<Integer> {
+		final String map_name;
+		final File[] params_files;
+		final int candidate_index;
+
+		Match(String map_name, File player0_params, File player1_params, int candidate_index) {
+			this.map_name = map_name;
+			this.params_files = new File[] { player0_params, player1_params };
+			this.candidate_index = candidate_index;
+		}
+
+		@Override
+		public Integer call() throws IOException, InterruptedException {
+			final int match_id = next_match_id.getAndIncrement();
+			final int port = free_ports.take();
+			try {
+				return play(match_id, port);
+			} finally {
+				free_ports.add(port);
+			}
+		}
+
+		private Integer play(int match_id, int port) throws IOException, InterruptedException {
+			final String preset_name = "tuning-" + match_id;
+			final String[] uuids = { "tune" + match_id + "a", "tune" + match_id + "b" };
+
+			final JsonObject preset = new JsonParser().parse(gson.toJson(preset_template)).getAsJsonObject();
+			preset.addProperty("mapName", map_name);
+			preset.addProperty("portNumber", port);
+			final File preset_file = new File(ctz_dir, "MatchPresets/" + preset_name + ".json");
+			writeString(preset_file, gson.toJson(preset));
+
+			final File server_log = new File(work_dir, "logs/" + match_id + "-server.log");
+			final ArrayList<Process> processes = new ArrayList<>(3);
+			try {
+				processes.add(start(server_log, "java", "-jar", "Libraries/CTZ-Server.jar", "-config", preset_name,
+					"-playeruuid0", uuids[0], "-playeruuid1", uuids[1], "-nogui"));
+				if (!waitForLine(server_log, "Server waiting for client", SERVER_START_TIMEOUT_MS)) {
+					return null;
+				}
+				for (int iplayer = 0; iplayer < 2; ++iplayer) {
+					final ArrayList<String> command = new ArrayList<>();
+					command.add("java");
+					if (class_data_archive != null) {
+						command.add("-XX:SharedArchiveFile=" + class_data_archive.getPath());
+					}
+					command.addAll(Arrays.asList("-D" + PlayerAI.Parameters.PATH_PROPERTY + "=" + params_files[iplayer].getAbsolutePath(),
+						"-classpath", bot_class_path, "RunClient", "-c", preset_name, "-u", uuids[iplayer]));
+					processes.add(start(new File(work_dir, "logs/" + match_id + "-client" + iplayer + ".log"), command.toArray(new String[0])));
+				}
+
+				final long timeout_ms = preset.get("turnLimit").getAsLong() * preset.get("maxResponseTime").getAsLong() * 4 + 60000;
+				if (!processes.get(0).waitFor(timeout_ms, TimeUnit.MILLISECONDS)) {
+					return null;
+				}
+				return readCandidateLead(uuids);
+			} finally {
+				for (Process p : processes) {
+					p.destroy();
+				}
+				preset_file.delete();
+			}
+		}
+
+		private Integer readCandidateLead(String[] uuids) throws IOException {
+			final File[] results = new File(ctz_dir, "Results").listFiles();
+			for (File result : results == null ? new File[0] : results) {
+				if (!result.getName().contains(uuids[0])) {
+					continue;
+				}
+				final JsonObject json = loadJson(result);
+				final JsonArray scores = json.getAsJsonArray("playerScores");
+				final JsonArray result_uuids = json.getAsJsonArray("playerUUIDs");
+				result.delete(); // they hold every move of the game, and there'll be thousands of them
+
+				int candidate_score = 0;
+				int baseline_score = 0;
+				for (int i = 0; i < result_uuids.size(); ++i) {
+					if (result_uuids.get(i).getAsString().equals(uuids[candidate_index])) {
+						candidate_score = scores.get(i).getAsInt();
+					} else {
+						baseline_score = scores.get(i).getAsInt();
+					}
+				}
+				return candidate_score - baseline_score;
+			}
+			return null;
+		}
+	}
+
+	private double[][] breed(double[][] population, final double[] fitnesses) {
+		Integer[] ranking = new Integer[population.length];
+		for (int i = 0; i < ranking.length; ++i) {
+			ranking[i] = i;
+		}
+		Arrays.sort(ranking, new Comparator<Integer>() { @Override public int compare(Integer o1, Integer o2) {
+			return Double.compare(fitnesses[o2], fitnesses[o1]);
+		}});
+
+		double[][] next = new double[population.length][];
+		for (int i = 0; i < next.length; ++i) {
+			if (i < NUM_ELITE) {
+				next[i] = population[ranking[i]];
+			} else {
+				next[i] = mutate(crossover(select(population, fitnesses), select(population, fitnesses)), MUTATION_RATE);
+			}
+		}
+		return next;
+	}
+
+	// breed() puts the elite first, so shrinking keeps them, and growing adds mutants of the best
+	private double[][] resize(double[][] population, int size) {
+		final double[][] resized = Arrays.copyOf(population, size);
+		for (int i = population.length; i < size; ++i) {
+			resized[i] = mutate(population[0], 1.0);
+		}
+		return resized;
+	}
+
+	private double[] select(double[][] population, double[] fitnesses) {
+		int best = random.nextInt(population.length);
+		for (int i = 1; i < TOURNAMENT_SIZE; ++i) {
+			int other = random.nextInt(population.length);
+			if (fitnesses[other] > fitnesses[best]) {
+				best = other;
+			}
+		}
+		return population[best];
+	}
+
+	private double[] crossover(double[] a, double[] b) {
+		double[] child = new double[a.length];
+		for (int i = 0; i < child.length; ++i) {
+			child[i] = random.nextBoolean() ? a[i] : b[i];
+		}
+		return child;
+	}
+
+	private double[] mutate(double[] genome, double rate) {
+		double[] result = Arrays.copyOf(genome, genome.length);
+		for (int i = 0; i < result.length; ++i) {
+			if (random.nextDouble() < rate) {
+				final Knob k = KNOBS[i];
+				result[i] = Math.max(k.min, Math.min(k.max, result[i] + random.nextGaussian() * MUTATION_SIZE * (k.max - k.min)));
+			}
+		}
+		return result;
+	}
+
+	static double[] genomeOf(PlayerAI.Parameters params) throws ReflectiveOperationException {
+		double[] genome = new double[KNOBS.length];
+		for (int i = 0; i < KNOBS.length; ++i) {
+			Field f = PlayerAI.Parameters.class.getDeclaredField(KNOBS[i].name);
+			if (f.getType() == boolean.class) {
+				genome[i] = f.getBoolean(params) ? 1.0 : 0.0;
+			} else {
+				genome[i] = ((Number)f.get(params)).doubleValue();
+			}
+		}
+		return genome;
+	}
+
+	static PlayerAI.Parameters paramsOf(double[] genome) throws ReflectiveOperationException {
+		PlayerAI.Parameters params = new PlayerAI.Parameters();
+		params.debug_prints = false;
+		for (int i = 0; i < KNOBS.length; ++i) {
+			Field f = PlayerAI.Parameters.class.getDeclaredField(KNOBS[i].name);
+			if (f.getType() == boolean.class) {
+				f.setBoolean(params, genome[i] > 0.5);
+			} else if (f.getType() == int.class) {
+				f.setInt(params, (int)Math.round(genome[i]));
+			} else {
+				f.setDouble(params, genome[i]);
+			}
+		}
+		return params;
+	}
+
+	private File writeParams(PlayerAI.Parameters params, String name) throws IOException {
+		File f = new File(work_dir, name.endsWith(".json") ? name : name + ".json");
+		writeString(f, gson.toJson(params));
+		return f;
+	}
+
+	private void saveCheckpoint(Checkpoint state, File checkpoint_file) throws IOException {
+		// write then rename, so being killed mid-write can't lose the last good checkpoint
+		File temp = new File(checkpoint_file.getPath() + ".tmp");
+		writeString(temp, gson.toJson(state));
+		Files.move(temp.toPath(), checkpoint_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Makes sure every map has a navigation cache (like Maps/Makefile does), and returns the map names.
+	private static String[] compileMaps(File maps_dir) throws IOException, InterruptedException {
+		ArrayList<String> names = new ArrayList<>();
+		File[] files = maps_dir.listFiles();
+		for (File f : files == null ? new File[0] : files) {
+			if (!f.getName().endsWith(".png")) {
+				continue;
+			}
+			final String name = f.getName().substring(0, f.getName().length() - ".png".length());
+			if (!new File(maps_dir, name + ".nac").exists()) {
+				Process p = new ProcessBuilder("java", "-jar", "CTZ-MapCompiler.jar", f.getName())
+					.directory(maps_dir).redirectErrorStream(true).redirectOutput(new File(maps_dir, name + ".log")).start();
+				if (p.waitFor() != 0) {
+					System.out.println("Couldn't compile " + f.getName() + ", skipping it");
+					continue;
+				}
+				new File(maps_dir, name + ".log").delete();
+			}
+			names.add(name);
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	private Process start(File log, String... command) throws IOException {
+		return new ProcessBuilder(command).directory(ctz_dir).redirectErrorStream(true).redirectOutput(log).start();
+	}
+
+	private static boolean waitForLine(File log, String line, long timeout_ms) throws IOException, InterruptedException {
+		final long give_up_at = System.currentTimeMillis() + timeout_ms;
+		while (System.currentTimeMillis() < give_up_at) {
+			if (log.exists() && new String(Files.readAllBytes(log.toPath()), "UTF-8").contains(line)) {
+				return true;
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+
+	private static JsonObject loadJson(File f) throws IOException {
+		try (Reader reader = new InputStreamReader(new FileInputStream(f), "UTF-8")) {
+			return new JsonParser().parse(reader).getAsJsonObject();
+		}
+	}
+
+	private static void writeString(File f, String s) throws IOException {
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(f), "UTF-8")) {
+			writer.write(s);
+		}
+	}
+
+	private static double max(double[] values) {
+		double result = Double.NEGATIVE_INFINITY;
+		for (double v : values) {
+			result = Math.max(result, v);
+		}
+		return result;
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double v : values) {
+			sum += v;
+		}
+		return sum / values.length;
+	}
+}
@@ -1,39 +1,128 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.PriorityQueue;
-
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.orbischallenge.ctz.Constants;
+import com.orbischallenge.ctz.client.Configuration;
+import com.orbischallenge.ctz.objects.CTZTileWorld;
 import com.orbischallenge.ctz.objects.ControlPoint;
 import com.orbischallenge.ctz.objects.EnemyUnit;
 import com.orbischallenge.ctz.objects.FriendlyUnit;
 import com.orbischallenge.ctz.objects.Pickup;
 import com.orbischallenge.ctz.objects.UnitClient;
 import com.orbischallenge.ctz.objects.World;
+import com.orbischallenge.ctz.objects.WorldCollisionCache;
+import com.orbischallenge.ctz.objects.cores.ControlPointCore;
+import com.orbischallenge.ctz.objects.cores.PickupCore;
+import com.orbischallenge.ctz.objects.cores.UnitCore;
 import com.orbischallenge.ctz.objects.enums.Direction;
+import com.orbischallenge.ctz.objects.enums.PickupType;
 import com.orbischallenge.ctz.objects.enums.Team;
+import com.orbischallenge.ctz.objects.enums.TileType;
 import com.orbischallenge.ctz.objects.enums.UnitAction;
 import com.orbischallenge.ctz.objects.enums.UnitCallSign;
 import com.orbischallenge.ctz.objects.enums.WeaponType;
+import com.orbischallenge.files.PathUtils;
 import com.orbischallenge.game.engine.Point;
 
 public class PlayerAI {
 
-	final static boolean DEBUG_PRINTS = true;
+	// Loaded once, when the class is loaded. Everything tunable below copies out of here into a static final,
+	// so the JIT treats it as a constant, exactly like when these were hard-coded.
+	final static Parameters PARAMS = Parameters.load();
+
+	final static boolean DEBUG_PRINTS = PARAMS.debug_prints;
 
-	final static double DANGER_VAL = 10.0;
-	final static double CAUTION_VAL = 5.0;
+	final static double DANGER_VAL = PARAMS.danger_val;
+	final static double CAUTION_VAL = PARAMS.caution_val;
 	
-	final static boolean AGGRESSIVE = true;
+	final static boolean AGGRESSIVE = PARAMS.aggressive;
 
 	public static final int MAX_NUM_TEAM_MEMBERS = 4;
 
 	// state vars
 	TurnData last_turn_data = new TurnData();
 	Team our_team = Team.NONE;
+	MapTables map_tables; // from the first turn on
+	final CapturePlanner capture_planner = new CapturePlanner();
+	final PickupPlanner pickup_planner = new PickupPlanner();
+	final Strategy strategy = makeStrategy(PARAMS.strategy);
+	final boolean is_warmup;
+	final SpeculativePlanner planner;
 
 	public PlayerAI() {
-		//Any initialization code goes here.
+		this(false);
+		Warmup.run();
+		MapTableCache.preload();
+	}
+
+	private PlayerAI(boolean is_warmup) {
+		this.is_warmup = is_warmup;
+		this.planner = is_warmup || !PARAMS.speculate ? null : SpeculativePlanner.start(this);
+	}
+
+	// Stops the speculation thread, and waits for it to end. Only worth calling when the process goes on to do
+	// something else, like playing another game
+	public void close() {
+		if (planner != null) {
+			planner.stop();
+		}
+	}
+
+	// Only runs the warm-up; used as the training run when building a class data sharing archive (see build-cds.sh)
+	public static void main(String[] args) {
+		new PlayerAI();
+	}
+
+	// For processes that play many maps, like MapBenchmark: warm up before timing the first game (every later
+	// PlayerAI skips it), and forgetMapTables() between maps so each one builds its own
+	static void warmUp() {
+		Warmup.run();
+	}
+
+	static void forgetMapTables() {
+		MapTableRegistry.clear();
+		MapTableCache.forget();
+	}
+
+	// builds the tables PlayerAIs will use on this map, unless they're already there
+	static void prepareMapTables(World world) {
+		MapTableRegistry.tablesFor(world, false);
 	}
 
 	/**
@@ -44,22 +133,24 @@ public class PlayerAI {
 	 * @param friendlyUnits An array of all 4 units on your team. Their order won't change.
 	 */
 	public void doMove(World input_w, EnemyUnit[] may_be_dead_enemy_units, FriendlyUnit[] may_be_dead_friendly_units) {
-		if (our_team == Team.NONE) { our_team = may_be_dead_friendly_units[0].getTeam(); } // one time setup
+		if (our_team == Team.NONE) { // one time setup
+			our_team = may_be_dead_friendly_units[0].getTeam();
+			// the warm-up's made up map mustn't end up in the real map's cache file
+			map_tables = MapTableRegistry.tablesFor(input_w, !is_warmup);
+		}
 
 		final World world = input_w;
 		final Pickup[] all_pickups = world.getPickups();
 		final ControlPoint[] all_control_points = world.getControlPoints();
-		final ControlPoint[] all_capture_flags = getCaptureFlags(all_control_points);
-		final ControlPoint[] not_our_capture_flags = getNeutralOrEnemyControlPoints(all_capture_flags, our_team);
-		final ControlPoint[] all_mainframes = getMainframes(all_control_points);
-		final ControlPoint[] not_our_mainframes = getNeutralOrEnemyControlPoints(all_mainframes, our_team);
 		final FriendlyUnit[] friendly_units = getAliveUnits(may_be_dead_friendly_units).toArray(new FriendlyUnit[0]);
 		final EnemyUnit[] enemy_units = getAliveUnits(may_be_dead_enemy_units).toArray(new EnemyUnit[0]);
+		final ThreatGrid threats = planner == null ? null : planner.turnStarted(enemy_units);
 
 		TurnData turn_data = new TurnData(friendly_units);
 
 		int[] num_enemies_targetting_friendly = new int[friendly_units.length];
 		int[] damage_enemies_can_deal_to_friendly = new int[friendly_units.length];
+		WeaponType[] strongest_weapon_targetting_friendly = new WeaponType[friendly_units.length];
 		
 		//int[] num_friendlies_targetting_enemy = new int[enemy_units.length];
 		//int[] damage_friendlies_can_deal_to_enemy = new int[enemy_units.length];
@@ -80,6 +171,9 @@ public class PlayerAI {
 				if (canXShootY(enemy, me, world)) { // can enemy shoot me
 					++(num_enemies_targetting_friendly[iunit]);
 					damage_enemies_can_deal_to_friendly[iunit] += enemy.getCurrentWeapon().getDamage();
+					if (strongest_weapon_targetting_friendly[iunit] == null || enemy.getCurrentWeapon().getDamage() > strongest_weapon_targetting_friendly[iunit].getDamage()) {
+						strongest_weapon_targetting_friendly[iunit] = enemy.getCurrentWeapon();
+					}
 				}
 
 				if (canXShootY(me, enemy, world) && enemy.getShieldedTurnsRemaining() <= 0) { // can I shoot enemy
@@ -192,9 +286,15 @@ public class PlayerAI {
 		// always shoot if in range
 		//     unless standing on a more useful weapon?
 
-		final ArrayList<Objective> non_combative_objectives = new ArrayList<>(not_our_capture_flags.length + not_our_mainframes.length + all_pickups.length);
-		non_combative_objectives.addAll(makeObjectivesFromControlPoints(new ArrayList<ControlPoint>(Arrays.asList(not_our_capture_flags))));
-		non_combative_objectives.addAll(makeObjectivesFromControlPoints(new ArrayList<ControlPoint>(Arrays.asList(not_our_mainframes))));
+		// distance fields to pickups are built on the first turn, and only touched again when a pickup disappears
+		pickup_planner.update(world);
+
+		// attack targets are the neutral & enemy points, defence targets are our points that enemies are near
+		capture_planner.update(all_control_points, enemy_units, world, map_tables, our_team);
+
+		final ArrayList<Objective> non_combative_objectives = new ArrayList<>(all_control_points.length + all_pickups.length);
+		non_combative_objectives.addAll(makeObjectivesFromControlPoints(capture_planner.getPointsToAttack()));
+		non_combative_objectives.addAll(makeObjectivesFromControlPoints(capture_planner.getPointsToDefend()));
 		non_combative_objectives.addAll(makeObjectivesFromPickups(new ArrayList<Pickup>(Arrays.asList(all_pickups))));
 
 		Point[] cp_mf_and_pu_points = new Point[non_combative_objectives.size()];
@@ -204,10 +304,22 @@ public class PlayerAI {
 
 		// the ranking is done here. To tweak, change the numbers in ObjectPathLengthMultiplier
 		final ArrayList<Objective> chosen_non_combative_objectives = ReplaceNullObjectivesWithNones(IndexesToObjects(
-			assignOnePointToEach(cp_mf_and_pu_points, friendly_units, world, new ObjectPathLengthMultiplier(world, non_combative_objectives)),
+			assignOnePointToEachPerUnit(cp_mf_and_pu_points, friendly_units, world, map_tables, new ObjectPathLengthMultiplier(world, non_combative_objectives, strategy, capture_planner, pickup_planner)),
 			non_combative_objectives
 		));
 
+		// don't walk past something good that's right next to us
+		for (int iunit = 0; iunit < friendly_units.length; ++iunit) {
+			if (chosen_non_combative_objectives.get(iunit).getType() == Objective.Type.PICKUP) {
+				continue;
+			}
+			final Point destination = chosen_non_combative_objectives.get(iunit).getLocationOfTarget(world, enemy_units);
+			final Pickup detour = pickup_planner.findDetour(friendly_units[iunit], destination, world, chosen_non_combative_objectives);
+			if (detour != null) {
+				chosen_non_combative_objectives.set(iunit, Objective.makePickupObjective(detour));
+			}
+		}
+
 		for (int iunit = 0; iunit < friendly_units.length; ++iunit) {
 			final FriendlyUnit me = friendly_units[iunit];
 			final Objective chosen_non_combative_objective = chosen_non_combative_objectives.get(iunit);
@@ -220,263 +332,2404 @@ public class PlayerAI {
 			final Point my_pos = me.getPosition();
 
 			if (chosen_non_combative_objective.getType() == Objective.Type.PICKUP && target_position.equals(my_pos)) {
-				turn_data.setData(me, chosen_non_combative_objective, UnitAction.PICK_UP, my_pos, world);
+				turn_data.setData(me, chosen_non_combative_objective, UnitAction.PICK_UP, my_pos, world, map_tables);
+			} else if (chosen_non_combative_objective.getType() == Objective.Type.CAPTURE && target_position.equals(my_pos)) {
+				// already on it - hold (no action), the shooting pass below may still override this
+				turn_data.setData(me.getCallSign(), chosen_non_combative_objective, null, my_pos);
 			} else {
-				final Direction direction = world.getNextDirectionInPath(my_pos, target_position);
+				final Direction direction = getNextDirectionWrapper(world, map_tables, my_pos, target_position);
 
 				final Point next_point = direction.movePoint(my_pos);
 
-				if (getSquareSafety(next_point, enemy_units, world) <= (AGGRESSIVE ? DANGER_VAL : CAUTION_VAL)) {
+				if (getSquareSafety(next_point, enemy_units, world, threats) <= strategy.maxSquareDanger()) {
 
-					turn_data = setMeToMove(me, next_point, chosen_non_combative_objective, turn_data, world);
+					turn_data = setMeToMove(me, next_point, chosen_non_combative_objective, turn_data, world, map_tables);
 				}
 				else {
-					final Point rerouted_point = reRoute(my_pos, target_position, world, new ShouldVisitPointTester() { @Override public boolean shouldVisitPoint(Point p) {
-						return getSquareSafety(p, enemy_units, world) <= (AGGRESSIVE ? DANGER_VAL : CAUTION_VAL);
+					final Point rerouted_point = reRoute(my_pos, target_position, world, map_tables, new ShouldVisitPointTester() { @Override public boolean shouldVisitPoint(Point p) {
+						return getSquareSafety(p, enemy_units, world, threats) <= strategy.maxSquareDanger();
 					}});
 
 					if (rerouted_point != null) {
-						turn_data = setMeToMove(me, rerouted_point, chosen_non_combative_objective, turn_data, world);
+						turn_data = setMeToMove(me, rerouted_point, chosen_non_combative_objective, turn_data, world, map_tables);
+					}
+				}
+			}
+		}
+
+		/* if (ATTACK_MODE) */ {
+			for (int i = 0; i < num_levels; ++i) {
+				if (!enemies_that_friendly_can_shoot.get(i).isEmpty()) {
+					FriendlyUnit me = friendly_units[i];
+					EnemyUnit enemy = enemy_units[enemies_that_friendly_can_shoot.get(i).get(max_damage_level_index[i])];
+
+					turn_data.setData(me, Objective.makeShootObjective(enemy), UnitAction.SHOOT, enemy.getPosition(), world, map_tables);
+				}
+			}
+			
+			/*
+			for (FriendlyUnit me : friendly_units) {
+				for (EnemyUnit enemy : enemy_units) {
+					turn_data = canShootDoShoot(me, enemy, world, turn_data);
+					// TODO do something more intelligent that isn't order dependent...
+				}
+			}
+			*/
+		}
+
+		// how each unit's exchange with the enemy it's shooting goes if it keeps shooting, or shields first
+		final boolean[] retreating = new boolean[friendly_units.length];
+		final int[] fight_outcomes = new int[friendly_units.length];
+		final int[] shield_first_outcomes = new int[friendly_units.length];
+		workOutEngagements(friendly_units, enemy_units, enemies_that_friendly_can_shoot, max_damage_level_index, num_enemies_targetting_friendly,
+			strongest_weapon_targetting_friendly, retreating, fight_outcomes, shield_first_outcomes);
+
+		// step out of fights we'd lose, if shielding won't help and there's somewhere out of sight to step to
+		boolean any_retreating = false;
+		for (int iunit = 0; iunit < friendly_units.length; ++iunit) {
+			final FriendlyUnit me = friendly_units[iunit];
+			if (!strategy.shouldShield(me, damage_enemies_can_deal_to_friendly[iunit], num_enemies_targetting_friendly[iunit], num_enemies_friendly_can_target[iunit] > 0, fight_outcomes[iunit], shield_first_outcomes[iunit])
+				&& strategy.shouldRetreat(me, fight_outcomes[iunit])
+			) {
+				final Direction refuge = findRefuge(me, friendly_units, enemy_units, world, threats, turn_data);
+				if (refuge != null) {
+					turn_data = setMeToMove(me, refuge, turn_data.objectives.getObjective(me), turn_data);
+					retreating[iunit] = any_retreating = true;
+				}
+			}
+		}
+		// they won't be shooting, so the others' fights go differently
+		if (any_retreating) {
+			workOutEngagements(friendly_units, enemy_units, enemies_that_friendly_can_shoot, max_damage_level_index, num_enemies_targetting_friendly,
+				strongest_weapon_targetting_friendly, retreating, fight_outcomes, shield_first_outcomes);
+		}
+
+		// shield instead, if staying exposed would kill us (or nearly, with nothing to shoot back at)
+		for (int iunit = 0; iunit < friendly_units.length; ++iunit) {
+			final FriendlyUnit me = friendly_units[iunit];
+			if (!retreating[iunit] && strategy.shouldShield(me, damage_enemies_can_deal_to_friendly[iunit], num_enemies_targetting_friendly[iunit], num_enemies_friendly_can_target[iunit] > 0, fight_outcomes[iunit], shield_first_outcomes[iunit])) {
+				turn_data.setData(me.getCallSign(), Objective.makeShieldObjective(), UnitAction.ACTIVATE_SHIELD, me.getPosition());
+			}
+		}
+
+		for (FriendlyUnit me : friendly_units) {
+			if (turn_data.objectives.getObjective(me).isNone()) {
+				// if nothing to do, kill, kill, kill!
+				// TODO helping might be better - look at other units' objectives
+				Point[] enemy_locations = getLocationsOf(enemy_units);
+				Integer closest_index = closestPointDjkstra(me.getPosition(), enemy_locations, world, map_tables);
+				if (closest_index != null) {
+					EnemyUnit target = enemy_units[closest_index];
+					turn_data = canShootDoShoot(me, target, world, turn_data);
+					if (turn_data.objectives.getObjective(me).isNone() == true) {
+						// couldn't shoot, so move toward target
+						// TODO move in line-of-sight, taking into account weapon ranges.
+						turn_data = setMeToMove(me, target.getPosition(), Objective.makeShootObjective(target), turn_data, world, map_tables);
+					}
+				}
+			}
+		}
+
+		// handle trying to shoot someone, but your teammate is in the way.
+		for (FriendlyUnit me : friendly_units) {
+			final Objective my_o = turn_data.objectives.getObjective(me);
+			if (   my_o.getType() == PlayerAI.Objective.Type.SHOOT
+				&& turn_data.getActionType(me) == UnitAction.MOVE
+				&& findUnitAt(turn_data.getMovePoint(me), friendly_units) != null
+			) {
+				Point betterNextPoint = reRoute(me.getPosition(), my_o.getEnemy(enemy_units).getPosition(), world, map_tables, new ShouldVisitPointTester() { @Override public boolean shouldVisitPoint(Point p) {
+					return findUnitAt(p, friendly_units) == null;
+				}});
+				if (betterNextPoint != null) {
+					setMeToMove(me, betterNextPoint, my_o, turn_data, world, map_tables);
+				}
+			}
+		}
+
+		// handle trying to go nowhere with an enemy bot
+		for (FriendlyUnit me : friendly_units) {
+			if (true
+				&& last_turn_data.getActionType(me) == UnitAction.MOVE
+				&& last_turn_data.getActionType(me) == turn_data.getActionType(me)
+				&& last_turn_data.getMovePoint(me) == last_turn_data.getMovePoint(me)
+			) {
+				// not sure what to do
+			}
+		}
+
+		// TODO check here if shoot objective is same as last time, and we wanted to move, and we didn't move
+		// it's either a 2 bots trying to got the same square or a bot is in the way. Either case, renegotiate.
+
+		// TODO resolve team blocking by having storing all requests to move, and arbitrating here (ie. right at the end)
+
+		// will print, if DEBUG_PRINTS is true, and should be guaranteed to not do so by the "kill, kill, kill" block
+		// other reasons you might not move:
+		//     another robot is in the way (if this mutually happens in a corridor... nothing happens sometimes...)
+		//     another robot (might be on your team!) tried to move to the same place
+		finishTurn(turn_data, friendly_units, enemy_units, world);
+	}
+
+	private void finishTurn(TurnData turn_data, FriendlyUnit[] friendly_units, EnemyUnit[] enemy_units, World world) {
+		final boolean do_printing = DEBUG_PRINTS && !is_warmup;
+		checkForNoneObjectives(turn_data.objectives, friendly_units, do_printing);
+		printTurnData(turn_data, friendly_units, enemy_units, world, do_printing);
+
+		// do moves
+		applyMoves(turn_data, friendly_units, enemy_units);
+
+		// done making moves - save new objectives as the last ones
+		last_turn_data = turn_data;
+
+		if (planner != null) {
+			planner.turnFinished(turn_data, friendly_units, enemy_units, world, map_tables);
+		}
+	}
+
+	// The EngagementTable outcomes for each unit that's shooting someone. The attackers on our side are the
+	// units shooting the same enemy, except for the ones not_shooting, and on theirs the ones that can shoot
+	// us, all taken to have the strongest of their weapons
+	private static void workOutEngagements(FriendlyUnit[] friendly_units, EnemyUnit[] enemy_units, ArrayList<ArrayList<Integer>> enemies_that_friendly_can_shoot,
+		int[] max_damage_level_index, int[] num_enemies_targetting_friendly, WeaponType[] strongest_weapon_targetting_friendly, boolean[] not_shooting,
+		int[] fight_outcomes, int[] shield_first_outcomes
+	) {
+		for (int iunit = 0; iunit < friendly_units.length; ++iunit) {
+			fight_outcomes[iunit] = shield_first_outcomes[iunit] = EngagementTable.UNKNOWN;
+			if (not_shooting[iunit] || enemies_that_friendly_can_shoot.get(iunit).isEmpty() || num_enemies_targetting_friendly[iunit] == 0) {
+				continue;
+			}
+			final FriendlyUnit me = friendly_units[iunit];
+			final int target_index = enemies_that_friendly_can_shoot.get(iunit).get(max_damage_level_index[iunit]);
+			int num_shooting_target = 0;
+			for (int i = 0; i < friendly_units.length; ++i) {
+				if (!not_shooting[i] && !enemies_that_friendly_can_shoot.get(i).isEmpty() && enemies_that_friendly_can_shoot.get(i).get(max_damage_level_index[i]) == target_index) {
+					++num_shooting_target;
+				}
+			}
+			final EnemyUnit target = enemy_units[target_index];
+			fight_outcomes[iunit] = EngagementTable.fight(me.getHealth(), target.getHealth(), me.getShieldedTurnsRemaining(),
+				me.getCurrentWeapon(), strongest_weapon_targetting_friendly[iunit], num_shooting_target, num_enemies_targetting_friendly[iunit]);
+			shield_first_outcomes[iunit] = EngagementTable.shieldFirst(me.getHealth(), target.getHealth(),
+				me.getCurrentWeapon(), strongest_weapon_targetting_friendly[iunit], num_shooting_target, num_enemies_targetting_friendly[iunit]);
+		}
+	}
+
+	// the way to the safest square next to me that no enemy can shoot now, and that no other unit is in or
+	// moving to, or null if there isn't one
+	private Direction findRefuge(FriendlyUnit me, FriendlyUnit[] friendly_units, EnemyUnit[] enemy_units, World world, ThreatGrid threats, TurnData turn_data) {
+		Direction refuge = null;
+		double refuge_safety = DANGER_VAL;
+		for (Direction d : Direction.values()) {
+			if (d == Direction.NOWHERE || !world.canMoveFromPointInDirection(me.getPosition(), d)) {
+				continue;
+			}
+			final Point p = d.movePoint(me.getPosition());
+			boolean taken = findUnitAt(p, friendly_units) != null;
+			for (FriendlyUnit other : friendly_units) {
+				taken |= other != me && turn_data.getActionType(other) == UnitAction.MOVE && p.equals(turn_data.getMovePoint(other));
+			}
+			if (taken) {
+				continue;
+			}
+			final double safety = getSquareSafety(p, enemy_units, world, threats);
+			if (safety < refuge_safety) {
+				refuge = d;
+				refuge_safety = safety;
+			}
+		}
+		return refuge;
+	}
+
+	// getSquareSafety, from the speculated ThreatGrid when it has the answer
+	private double getSquareSafety(Point point, EnemyUnit[] enemy_units, World world, ThreatGrid threats) {
+		final Double speculated = threats == null ? null : threats.safetyOf(point);
+		return speculated != null ? speculated : getSquareSafety(point, enemy_units, world, map_tables);
+	}
+
+	// Return a safety value of the provided square/point
+	// Lower the value the better.
+	// Lowest value returned is 0.0 -> Safe
+	// CAUTION_VAL returned -> Enemy can move to a square to be in line of sight in one turn
+	// DANGER_VAL returned -> Currently in enemy's line of sight
+	// tables may be null, then this asks the world
+	static double getSquareSafety(Point point, EnemyUnit[] enemyUnits, World world, MapTables tables) {
+		final Point[] positions = new Point[enemyUnits.length];
+		final WeaponType[] weapons = new WeaponType[enemyUnits.length];
+		for (int i = 0; i < enemyUnits.length; ++i) {
+			positions[i] = enemyUnits[i].getPosition();
+			weapons[i] = enemyUnits[i].getCurrentWeapon();
+		}
+		return getSquareSafety(point, positions, weapons, world, tables);
+	}
+
+	// for enemies that aren't there yet, or might not be (see SpeculativePlanner)
+	static double getSquareSafety(Point point, Point[] enemy_positions, WeaponType[] enemy_weapons, World world, MapTables tables) {
+		double safety = 0.0;
+
+		for (int i = 0; i < enemy_positions.length; ++i) {
+			WeaponType weapon = enemy_weapons[i];
+			int range = weapon.getRange();
+
+			Point position = enemy_positions[i];
+
+			boolean in_range = canShootWrapper(world, tables, position, point, range);
+
+			if (in_range) {
+				safety = Math.max(safety, DANGER_VAL);
+				break;
+			}
+			else {
+				if (safety < CAUTION_VAL) {
+					Point[] adjacent_points = getAdjacentPoints(position);
+
+					for (Point p : adjacent_points) {
+						if (canShootWrapper(world, tables, p, point, range)) {
+							// Can be dangerous next turn
+							safety = Math.max(safety, CAUTION_VAL);
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		return safety;
+	}
+
+	static boolean canShootWrapper(World world, MapTables tables, Point shooter, Point target, int range) {
+		if (tables != null && range <= TerrainAnalysis.MAX_RANGE) {
+			return tables.terrain.canShoot(shooter, target, range);
+		}
+		return world.canShooterShootTarget(shooter, target, range);
+	}
+
+	private interface ShouldVisitPointTester {
+		boolean shouldVisitPoint(Point p);
+	}
+
+	// Return a safe next move (Point to move to) to advance from src towards dst
+	// Return null if there is not safe next move or the best safe move is to standby or move away from the dst
+	// Of equally short moves, takes the one in the most open and least exposed square, to stay out of places
+	// units get stuck in or shot from everywhere
+	static Point reRoute(Point src, Point dst, World world, MapTables tables, ShouldVisitPointTester visit_point_tester) {
+		int current_distance = getPathLengthWrapper(world, tables, src, dst);
+
+		Point[] adjacent_points = getAdjacentPoints(src);
+
+		int min_distance = current_distance;
+		Point rerouted_point = null;
+		for (Point p : adjacent_points) {
+			if (visit_point_tester.shouldVisitPoint(p)) {
+				int distance = getPathLengthWrapper(world, tables, p, dst);
+				if (distance < min_distance || (distance == min_distance && rerouted_point != null && isBetterTerrain(tables, p, rerouted_point))) {
+					min_distance = distance;
+					rerouted_point = p;
+				}
+			}
+		}
+
+		return rerouted_point;
+	}
+
+	// for choosing between otherwise equal squares; tables may be null, then neither is
+	static boolean isBetterTerrain(MapTables tables, Point a, Point b) {
+		if (tables == null) {
+			return false;
+		}
+		final byte a_kind = tables.terrain.kindOf(a);
+		final byte b_kind = tables.terrain.kindOf(b);
+		if (a_kind != b_kind) {
+			return a_kind < b_kind;
+		}
+		return tables.terrain.exposureOf(a, TerrainAnalysis.LONGEST_RANGED) < tables.terrain.exposureOf(b, TerrainAnalysis.LONGEST_RANGED);
+	}
+
+	static Point[] getAdjacentPoints(Point point) {
+		int x = point.getX();
+		int y = point.getY();
+
+		Point[] adjacent_points = new Point[8];
+
+		adjacent_points[0] = new Point(x-1, y-1);
+		adjacent_points[1] = new Point(x-1, y);
+		adjacent_points[2] = new Point(x-1, y+1);
+		adjacent_points[3] = new Point(x, y+1);
+		adjacent_points[4] = new Point(x+1, y+1);
+		adjacent_points[5] = new Point(x+1, y);
+		adjacent_points[6] = new Point(x+1, y-1);
+		adjacent_points[7] = new Point(x, y-1);
+
+		return adjacent_points;
+	}
+
+	// Maps too big for the all-pairs table are routed by their SectorGraph, whether or not the client loaded a
+	// NavigationCache for them (it always tries to). Both path lengths and directions come from it, so a unit's
+	// next step is along the path its length was measured on
+	static boolean routesBySectors(MapTables tables) {
+		return tables != null && tables.sectors != null;
+	}
+
+	static Direction getNextDirectionWrapper(World world, MapTables tables, Point start, Point end) {
+		if (routesBySectors(tables)) {
+			return tables.nextDirection(start, end);
+		}
+		return world.getNextDirectionInPath(start, end);
+	}
+
+	// tables may be null, then this asks the world
+	static int getPathLengthWrapper(World world, MapTables tables, Point start, Point end) {
+		if (start.equals(end)) {
+			return 0;
+		}
+
+		int distance = tables == null ? world.getPathLength(start, end) : tables.pathLength(start, end);
+
+		if (distance == 0 || distance == DistanceField.UNREACHABLE) { // world.getPathLength returns 0 is path doesn't exist
+			distance = Integer.MAX_VALUE;
+		}
+
+		return distance;
+	}
+
+	// At most getPathLengthWrapper, and cheap to ask even on maps where that means a search. Integer.MAX_VALUE
+	// if there's no path. tables may be null, then all this knows is 0
+	static int getPathLengthLowerBound(World world, MapTables tables, Point start, Point end) {
+		if (tables == null || start.equals(end)) {
+			return 0;
+		}
+		final int bound = tables.lowerBound(start, end);
+		return bound == DistanceField.UNREACHABLE ? Integer.MAX_VALUE : bound;
+	}
+
+	// Path lengths from every square of the map to the nearest of a set of source squares, found with one BFS.
+	// Answers the same thing as World.getPathLength, but as an array lookup.
+	private static final class DistanceField {
+		final static short UNREACHABLE = Short.MAX_VALUE;
+
+		private final static Direction[] MOVE_DIRECTIONS = {
+			Direction.NORTH, Direction.NORTH_EAST, Direction.EAST, Direction.SOUTH_EAST,
+			Direction.SOUTH, Direction.SOUTH_WEST, Direction.WEST, Direction.NORTH_WEST,
+		};
+
+		final int width;
+		final int height;
+		final short[] distances; // indexed by y*width + x
+
+		private DistanceField(int width, int height, short[] distances) {
+			this.width = width;
+			this.height = height;
+			this.distances = distances;
+		}
+
+		public static DistanceField compute(World world, Point... sources) {
+			final int width = world.getWidth();
+			final int height = world.getHeight();
+			final short[] distances = new short[width * height];
+			Arrays.fill(distances, UNREACHABLE);
+
+			final int[] queue = new int[width * height];
+			int head = 0;
+			int tail = 0;
+			for (Point source : sources) {
+				int index = source.getY() * width + source.getX();
+				if (distances[index] != 0) {
+					distances[index] = 0;
+					queue[tail++] = index;
+				}
+			}
+
+			while (head < tail) {
+				final int index = queue[head++];
+				final Point p = new Point(index % width, index / width);
+				for (Direction d : MOVE_DIRECTIONS) {
+					final Point n = d.movePoint(p);
+					if (!world.isWithinBounds(n)) {
+						continue;
+					}
+					final int n_index = n.getY() * width + n.getX();
+					// we want the distance *to* the sources, so check the move from the neighbour back to here
+					if (distances[n_index] == UNREACHABLE && world.canMoveFromPointInDirection(n, d.rotateClockwise(4))) {
+						distances[n_index] = (short)(distances[index] + 1);
+						queue[tail++] = n_index;
 					}
 				}
 			}
+
+			return new DistanceField(width, height, distances);
+		}
+
+		public static DistanceField minOf(ArrayList<DistanceField> fields) {
+			final DistanceField first = fields.get(0);
+			final short[] distances = Arrays.copyOf(first.distances, first.distances.length);
+			for (int ifield = 1; ifield < fields.size(); ++ifield) {
+				final short[] other = fields.get(ifield).distances;
+				for (int i = 0; i < distances.length; ++i) {
+					if (other[i] < distances[i]) {
+						distances[i] = other[i];
+					}
+				}
+			}
+			return new DistanceField(first.width, first.height, distances);
+		}
+
+		public int distanceAt(Point p) {
+			final int x = p.getX();
+			final int y = p.getY();
+			if (x < 0 || y < 0 || x >= width || y >= height) {
+				return UNREACHABLE;
+			}
+			return distances[y * width + x];
+		}
+	}
+
+	// The ways a map can land on itself with the two sides swapped, which is how competition maps are
+	// usually drawn. Whatever's worked out from the map then only needs working out for half of it.
+	private static enum Symmetry {
+		NONE, ROTATE_180, MIRROR_LEFT_RIGHT, MIRROR_TOP_BOTTOM, TRANSPOSE, ANTI_TRANSPOSE;
+
+		// index (y*width + x) of the square p lands on
+		public int imageOf(int x, int y, int width, int height) {
+			switch (this) {
+			case ROTATE_180:        return (height - 1 - y) * width + (width - 1 - x);
+			case MIRROR_LEFT_RIGHT: return y * width + (width - 1 - x);
+			case MIRROR_TOP_BOTTOM: return (height - 1 - y) * width + x;
+			case TRANSPOSE:         return x * width + y; // square maps only
+			case ANTI_TRANSPOSE:    return (width - 1 - x) * width + (height - 1 - y); // square maps only
+			case NONE:
+			default:                return y * width + x;
+			}
+		}
+
+		public boolean fits(int width, int height) {
+			return (this != TRANSPOSE && this != ANTI_TRANSPOSE) || width == height;
+		}
+
+		// spawns are swapped between teams by the symmetry, so tiles only have to agree on what they block
+		private static boolean blocksTheSame(TileType a, TileType b) {
+			return a.doesBlockMovement() == b.doesBlockMovement() && a.doesBlockBullets() == b.doesBlockBullets();
+		}
+
+		// the first symmetry (in declaration order) every tile agrees with, or NONE
+		public static Symmetry detect(World world) {
+			final int width = world.getWidth();
+			final int height = world.getHeight();
+			for (Symmetry symmetry : values()) {
+				if (symmetry == NONE || !symmetry.fits(width, height)) {
+					continue;
+				}
+				boolean symmetric = true;
+				for (int index = 0; symmetric && index < width * height; ++index) {
+					final int image = symmetry.imageOf(index % width, index / width, width, height);
+					symmetric = blocksTheSame(world.getTile(new Point(index % width, index / width)), world.getTile(new Point(image % width, image / width)));
+				}
+				if (symmetric) {
+					return symmetry;
+				}
+			}
+			return NONE;
+		}
+	}
+
+	// Everything worked out from the map alone, which can't change during a match. Mostly that's the path
+	// length between every pair of squares (one BFS per square), so a path length is an array lookup instead
+	// of World.getPathLength's walk along the path.
+	// On a symmetric map only the rows from canonical squares (the ones no bigger than their image) are kept,
+	// and a path from the other half is looked up as the path between the images of its ends.
+	// Maps too big for that table get a SectorGraph to answer path queries instead.
+	private static final class MapTables {
+		final static long MAX_ENTRIES = 2500 * 2500; // shorts in the table, past this use a SectorGraph
+
+		final static int[] DX = new int[DistanceField.MOVE_DIRECTIONS.length];
+		final static int[] DY = new int[DistanceField.MOVE_DIRECTIONS.length];
+		static {
+			for (int d = 0; d < DistanceField.MOVE_DIRECTIONS.length; ++d) {
+				final Point moved = DistanceField.MOVE_DIRECTIONS[d].movePoint(new Point(0, 0));
+				DX[d] = moved.getX();
+				DY[d] = moved.getY();
+			}
+		}
+
+		final int width;
+		final int height;
+		final Symmetry symmetry;
+		final int[] images; // square index -> index of its image under symmetry
+		final int[] rows; // square index -> its row of distances, or -1 if it isn't canonical
+		final int num_rows;
+		final short[] distances; // [rows[from] * width*height + to], squares indexed by y*width + x. null on big maps
+		final SectorGraph sectors; // only on big maps
+		final LandmarkOracle landmarks; // only on big maps
+		final TerrainAnalysis terrain;
+
+		// Sector searches are slow enough to be worth remembering, and their answers never change, so any thread
+		// can ask ahead of time (see SpeculativePlanner) and leave the answer here. Only on big maps.
+		final static int MAX_REMEMBERED = 1 << 16; // each, after which they're emptied
+		private final ConcurrentHashMap<Long, Integer> remembered_lengths;
+		private final ConcurrentHashMap<Long, Direction> remembered_directions;
+
+		MapTables(int width, int height, Symmetry symmetry, short[] distances, TerrainAnalysis terrain) {
+			this.width = width;
+			this.height = height;
+			this.symmetry = symmetry;
+			this.images = imagesOf(width, height, symmetry);
+			this.rows = new int[width * height];
+			int num_rows = 0;
+			for (int index = 0; index < rows.length; ++index) {
+				rows[index] = index <= images[index] ? num_rows++ : -1;
+			}
+			this.num_rows = num_rows;
+			this.distances = distances;
+			this.sectors = null;
+			this.landmarks = null;
+			this.terrain = terrain;
+			this.remembered_lengths = null;
+			this.remembered_directions = null;
+		}
+
+		MapTables(int width, int height, SectorGraph sectors, LandmarkOracle landmarks, TerrainAnalysis terrain) {
+			this.width = width;
+			this.height = height;
+			this.symmetry = Symmetry.NONE;
+			this.images = null;
+			this.rows = null;
+			this.num_rows = 0;
+			this.distances = null;
+			this.sectors = sectors;
+			this.landmarks = landmarks;
+			this.terrain = terrain;
+			this.remembered_lengths = new ConcurrentHashMap<>();
+			this.remembered_directions = new ConcurrentHashMap<>();
+		}
+
+		private static int[] imagesOf(int width, int height, Symmetry symmetry) {
+			final int[] images = new int[width * height];
+			for (int index = 0; index < images.length; ++index) {
+				images[index] = symmetry.imageOf(index % width, index / width, width, height);
+			}
+			return images;
+		}
+
+		public static int numRowsFor(int width, int height, Symmetry symmetry) {
+			final int[] images = imagesOf(width, height, symmetry);
+			int num_rows = 0;
+			for (int index = 0; index < images.length; ++index) {
+				if (index <= images[index]) {
+					++num_rows;
+				}
+			}
+			return num_rows;
+		}
+
+		// bit d is set if a unit can step from the square in MOVE_DIRECTIONS[d]
+		public static byte[] movesOf(World world) {
+			final int width = world.getWidth();
+			final int num_squares = width * world.getHeight();
+			final byte[] moves = new byte[num_squares];
+			for (int index = 0; index < num_squares; ++index) {
+				final Point p = new Point(index % width, index / width);
+				for (int d = 0; d < DistanceField.MOVE_DIRECTIONS.length; ++d) {
+					if (world.canMoveFromPointInDirection(p, DistanceField.MOVE_DIRECTIONS[d])) {
+						moves[index] |= 1 << d;
+					}
+				}
+			}
+			return moves;
+		}
+
+		public static MapTables compute(World world) {
+			final int width = world.getWidth();
+			final int height = world.getHeight();
+			final int num_squares = width * height;
+			final Symmetry symmetry = Symmetry.detect(world);
+			final byte[] moves = movesOf(world);
+			final TerrainAnalysis terrain = TerrainAnalysis.compute(world, moves);
+			if ((long)numRowsFor(width, height, symmetry) * num_squares > MAX_ENTRIES) {
+				return new MapTables(width, height, SectorGraph.compute(width, height, moves), LandmarkOracle.compute(width, moves, terrain.regions), terrain);
+			}
+
+			final short[] distances = new short[numRowsFor(width, height, symmetry) * num_squares];
+			final MapTables tables = new MapTables(width, height, symmetry, distances, terrain);
+			Arrays.fill(distances, DistanceField.UNREACHABLE);
+			final int[] queue = new int[num_squares];
+			for (int from = 0; from < num_squares; ++from) {
+				if (tables.rows[from] >= 0) {
+					breadthFirst(width, moves, from, distances, tables.rows[from] * num_squares, queue);
+				}
+			}
+
+			return tables;
+		}
+
+		// distances from one square to all of them, into distances[row ..], which must start out UNREACHABLE
+		static void breadthFirst(int width, byte[] moves, int from, short[] distances, int row, int[] queue) {
+			int head = 0;
+			int tail = 0;
+			distances[row + from] = 0;
+			queue[tail++] = from;
+			while (head < tail) {
+				final int index = queue[head++];
+				final int x = index % width;
+				final int y = index / width;
+				for (int d = 0; d < DX.length; ++d) {
+					if ((moves[index] & (1 << d)) == 0) {
+						continue;
+					}
+					final int n_index = (y + DY[d]) * width + x + DX[d];
+					if (distances[row + n_index] == DistanceField.UNREACHABLE) {
+						distances[row + n_index] = (short)(distances[row + index] + 1);
+						queue[tail++] = n_index;
+					}
+				}
+			}
+		}
+
+		// index into MOVE_DIRECTIONS of the step (dx, dy)
+		static int directionIndex(int dx, int dy) {
+			for (int d = 0; d < DX.length; ++d) {
+				if (DX[d] == dx && DY[d] == dy) {
+					return d;
+				}
+			}
+			throw new IllegalStateException("no direction " + dx + "," + dy);
+		}
+
+		// DistanceField.UNREACHABLE if there's no path. On maps with a SectorGraph, the length of the path
+		// nextDirection follows, which can be a little longer than the shortest
+		public int pathLength(Point from, Point to) {
+			int from_index = indexOf(from);
+			int to_index = indexOf(to);
+			if (from_index < 0 || to_index < 0) {
+				return DistanceField.UNREACHABLE;
+			}
+			if (terrain.regions[from_index] != terrain.regions[to_index]) {
+				return DistanceField.UNREACHABLE; // saves the SectorGraph searching everywhere it can get to first
+			}
+			if (sectors != null) {
+				final long key = (long)from_index * width * height + to_index;
+				Integer length = remembered_lengths.get(key);
+				if (length == null) {
+					length = sectors.pathLength(from_index, to_index);
+					remember(remembered_lengths, key, length);
+				}
+				return length;
+			}
+			if (rows[from_index] < 0) {
+				from_index = images[from_index];
+				to_index = images[to_index];
+			}
+			return distances[rows[from_index] * width * height + to_index];
+		}
+
+		// only for maps with a SectorGraph; the others have the NavigationCache
+		public Direction nextDirection(Point from, Point to) {
+			final int from_index = indexOf(from);
+			final int to_index = indexOf(to);
+			if (from_index < 0 || to_index < 0) {
+				return Direction.NOWHERE;
+			}
+			final long key = (long)from_index * width * height + to_index;
+			Direction direction = remembered_directions.get(key);
+			if (direction == null) {
+				direction = sectors.nextDirection(from_index, to_index);
+				remember(remembered_directions, key, direction);
+			}
+			return direction;
+		}
+
+		private static <V> void remember(ConcurrentHashMap<Long, V> remembered, long key, V value) {
+			if (remembered.size() >= MAX_REMEMBERED) {
+				remembered.clear();
+			}
+			remembered.put(key, value);
+		}
+
+		// At most pathLength, in O(LandmarkOracle.NUM_LANDMARKS). The same as pathLength where there's a full table
+		public int lowerBound(Point from, Point to) {
+			final int from_index = indexOf(from);
+			final int to_index = indexOf(to);
+			if (sectors == null || from_index < 0 || to_index < 0 || terrain.regions[from_index] != terrain.regions[to_index]) {
+				return pathLength(from, to);
+			}
+			return landmarks.lowerBound(from_index, to_index);
+		}
+
+		private int indexOf(Point p) {
+			final int x = p.getX();
+			final int y = p.getY();
+			if (x < 0 || y < 0 || x >= width || y >= height) {
+				return -1;
+			}
+			return y * width + x;
+		}
+	}
+
+	// ALT (A*, landmarks, triangle inequality) lower bounds on path lengths, for maps where MapTables can't hold
+	// them all. Distances from NUM_LANDMARKS squares spread out over the biggest region are kept, and for any two
+	// squares |d(L, a) - d(L, b)| <= d(a, b) for every landmark L. That's NUM_LANDMARKS shorts per square, whatever
+	// the size of the map.
+	private static final class LandmarkOracle {
+		final static int NUM_LANDMARKS = 16;
+
+		final int width;
+		final int num_squares;
+		final int[] landmarks;
+		final short[] distances; // [landmark * num_squares + square], DistanceField.UNREACHABLE outside its region
+
+		private LandmarkOracle(int width, int num_squares, int[] landmarks, short[] distances) {
+			this.width = width;
+			this.num_squares = num_squares;
+			this.landmarks = landmarks;
+			this.distances = distances;
+		}
+
+		// Each landmark is the square farthest from the ones already picked, which puts them around the edges,
+		// where they're on the way between the most pairs of squares.
+		public static LandmarkOracle compute(int width, byte[] moves, int[] regions) {
+			final int num_squares = moves.length;
+			final int[] region_sizes = new int[num_squares + 1];
+			int biggest_region = 0;
+			int start = -1;
+			for (int index = 0; index < num_squares; ++index) {
+				if (regions[index] >= 0 && ++region_sizes[regions[index]] > region_sizes[biggest_region]) {
+					biggest_region = regions[index];
+				}
+			}
+			for (int index = 0; index < num_squares && start < 0; ++index) {
+				if (regions[index] == biggest_region) {
+					start = index;
+				}
+			}
+			if (start < 0) {
+				return new LandmarkOracle(width, num_squares, new int[0], new short[0]);
+			}
+
+			final int num_landmarks = Math.min(NUM_LANDMARKS, region_sizes[biggest_region]);
+			final int[] landmarks = new int[num_landmarks];
+			final short[] distances = new short[num_landmarks * num_squares];
+			Arrays.fill(distances, DistanceField.UNREACHABLE);
+			final int[] queue = new int[num_squares];
+
+			// distance to the nearest landmark so far, starting from the farthest square from an arbitrary one
+			final short[] nearest = new short[num_squares];
+			Arrays.fill(nearest, DistanceField.UNREACHABLE);
+			MapTables.breadthFirst(width, moves, start, nearest, 0, queue);
+			for (int landmark = 0; landmark < num_landmarks; ++landmark) {
+				int farthest = start;
+				for (int index = 0; index < num_squares; ++index) {
+					if (regions[index] == biggest_region && nearest[index] > nearest[farthest]) {
+						farthest = index;
+					}
+				}
+				landmarks[landmark] = farthest;
+				MapTables.breadthFirst(width, moves, farthest, distances, landmark * num_squares, queue);
+				for (int index = 0; index < num_squares; ++index) {
+					// after the first landmark, nearest is only about landmarks
+					final short distance = distances[landmark * num_squares + index];
+					nearest[index] = landmark == 0 ? distance : (short)Math.min(nearest[index], distance);
+				}
+			}
+
+			return new LandmarkOracle(width, num_squares, landmarks, distances);
+		}
+
+		// at least the Chebyshev distance, which is what a path with no walls in the way would be
+		public int lowerBound(int from, int to) {
+			int bound = Math.max(Math.abs(from % width - to % width), Math.abs(from / width - to / width));
+			for (int landmark = 0; landmark < landmarks.length; ++landmark) {
+				final short from_distance = distances[landmark * num_squares + from];
+				final short to_distance = distances[landmark * num_squares + to];
+				if (from_distance != DistanceField.UNREACHABLE && to_distance != DistanceField.UNREACHABLE) {
+					bound = Math.max(bound, Math.abs(from_distance - to_distance));
+				}
+			}
+			return bound;
+		}
+	}
+
+	// What the walls mean for a fight, worked out once per map with the rest of MapTables: how far a shot gets
+	// from each square in each direction, how many squares each square can be shot from with each weapon,
+	// which squares are corridors or choke points, and which squares can reach each other at all.
+	// Squares are indexed by y*width + x, like in MapTables.
+	// Unlike the distances, these aren't halved on symmetric maps. They're 21 bytes a square (a tenth of the
+	// distance table on a 15x15 map, less on bigger ones), so finding a square's canonical half would cost about
+	// as much memory as it saved, and canShoot, which is on the hot path, would pay for an image lookup every call.
+	private static final class TerrainAnalysis {
+		// in order of preference
+		final static byte OPEN = 0;
+		final static byte CORRIDOR = 1; // walled in on two opposite sides
+		final static byte CHOKE_POINT = 2; // cuts off part of the map (an articulation point of the move graph)
+
+		final static WeaponType LONGEST_RANGED;
+		static {
+			WeaponType longest_ranged = WeaponType.values()[0];
+			for (WeaponType weapon : WeaponType.values()) {
+				if (weapon.getRange() > longest_ranged.getRange()) {
+					longest_ranged = weapon;
+				}
+			}
+			LONGEST_RANGED = longest_ranged;
+		}
+		final static int MAX_RANGE = LONGEST_RANGED.getRange();
+
+		final int width;
+		final int height;
+		final byte[] reach; // [d * width*height + square] squares a shot fired in MOVE_DIRECTIONS[d] can hit, at most MAX_RANGE
+		final short[] exposure; // [weapon ordinal * width*height + square] squares a unit with that weapon could shoot it from
+		final byte[] kinds; // OPEN, CORRIDOR or CHOKE_POINT. walls are OPEN
+		final int[] regions; // squares with the same region can reach each other. -1 for walls
+
+		private TerrainAnalysis(int width, int height, byte[] reach, short[] exposure, byte[] kinds, int[] regions) {
+			this.width = width;
+			this.height = height;
+			this.reach = reach;
+			this.exposure = exposure;
+			this.kinds = kinds;
+			this.regions = regions;
+		}
+
+		public static TerrainAnalysis compute(World world, byte[] moves) {
+			final int width = world.getWidth();
+			final int height = world.getHeight();
+			final int num_squares = width * height;
+			final int num_directions = MapTables.DX.length;
+
+			// a shot gets as far as it can take single steps, which is how the world casts its rays too
+			final boolean[] can_step = new boolean[num_directions * num_squares];
+			for (int index = 0; index < num_squares; ++index) {
+				final Point p = new Point(index % width, index / width);
+				for (int d = 0; d < num_directions; ++d) {
+					final Point n = new Point(p.getX() + MapTables.DX[d], p.getY() + MapTables.DY[d]);
+					can_step[d * num_squares + index] = world.isWithinBounds(n) && world.canShooterShootTarget(p, n, 1);
+				}
+			}
+			final byte[] reach = new byte[num_directions * num_squares];
+			for (int d = 0; d < num_directions; ++d) {
+				for (int index = 0; index < num_squares; ++index) {
+					int x = index % width;
+					int y = index / width;
+					int steps = 0;
+					while (steps < MAX_RANGE && can_step[d * num_squares + y * width + x]) {
+						x += MapTables.DX[d];
+						y += MapTables.DY[d];
+						++steps;
+					}
+					reach[d * num_squares + index] = (byte)steps;
+				}
+			}
+
+			// lines of sight go both ways, so the squares that can shoot here are the ones that can be shot from here
+			final WeaponType[] weapons = WeaponType.values();
+			final short[] exposure = new short[weapons.length * num_squares];
+			for (WeaponType weapon : weapons) {
+				for (int index = 0; index < num_squares; ++index) {
+					int seen = 0;
+					for (int d = 0; d < num_directions; ++d) {
+						seen += Math.min(reach[d * num_squares + index], weapon.getRange());
+					}
+					exposure[weapon.ordinal() * num_squares + index] = (short)seen;
+				}
+			}
+
+			final byte[] kinds = new byte[num_squares];
+			final int[] regions = new int[num_squares];
+			findChokePointsAndRegions(world, moves, kinds, regions);
+
+			final int north = MapTables.directionIndex(0, -1);
+			final int south = MapTables.directionIndex(0, 1);
+			final int east = MapTables.directionIndex(1, 0);
+			final int west = MapTables.directionIndex(-1, 0);
+			for (int index = 0; index < num_squares; ++index) {
+				final boolean walled_north_and_south = (moves[index] & ((1 << north) | (1 << south))) == 0;
+				final boolean walled_east_and_west = (moves[index] & ((1 << east) | (1 << west))) == 0;
+				if (kinds[index] == OPEN && regions[index] >= 0 && (walled_north_and_south || walled_east_and_west)) {
+					kinds[index] = CORRIDOR;
+				}
+			}
+
+			return new TerrainAnalysis(width, height, reach, exposure, kinds, regions);
+		}
+
+		// Tarjan's articulation points, with an explicit stack since a corridor can be deeper than the call stack.
+		// Each DFS tree is a region.
+		private static void findChokePointsAndRegions(World world, byte[] moves, byte[] kinds, int[] regions) {
+			final int width = world.getWidth();
+			final int num_squares = moves.length;
+			final int[] discovered = new int[num_squares]; // 0 is not yet
+			final int[] low = new int[num_squares];
+			final int[] parent = new int[num_squares];
+			final byte[] next_direction = new byte[num_squares];
+			final int[] stack = new int[num_squares];
+			Arrays.fill(regions, -1);
+
+			int time = 0;
+			int num_regions = 0;
+			for (int root = 0; root < num_squares; ++root) {
+				if (discovered[root] != 0 || world.getTile(new Point(root % width, root / width)).doesBlockMovement()) {
+					continue;
+				}
+				int top = 0;
+				int root_children = 0;
+				stack[top++] = root;
+				discovered[root] = low[root] = ++time;
+				parent[root] = -1;
+				regions[root] = num_regions;
+
+				while (top > 0) {
+					final int square = stack[top - 1];
+					if (next_direction[square] < MapTables.DX.length) {
+						final int d = next_direction[square]++;
+						if ((moves[square] & (1 << d)) == 0) {
+							continue;
+						}
+						final int next = (square / width + MapTables.DY[d]) * width + square % width + MapTables.DX[d];
+						if (discovered[next] == 0) {
+							discovered[next] = low[next] = ++time;
+							parent[next] = square;
+							regions[next] = num_regions;
+							stack[top++] = next;
+							if (square == root) {
+								++root_children;
+							}
+						} else if (next != parent[square]) {
+							low[square] = Math.min(low[square], discovered[next]);
+						}
+					} else {
+						--top;
+						final int up = parent[square];
+						if (up >= 0) {
+							low[up] = Math.min(low[up], low[square]);
+							if (up != root && low[square] >= discovered[up]) {
+								kinds[up] = CHOKE_POINT;
+							}
+						}
+					}
+				}
+				if (root_children > 1) {
+					kinds[root] = CHOKE_POINT;
+				}
+				++num_regions;
+			}
+		}
+
+		// how much room writeTo takes. The arrays are stored one after another, in the order they're declared
+		public static int numBytesFor(int width, int height) {
+			final int num_squares = width * height;
+			return MapTables.DX.length * num_squares + WeaponType.values().length * num_squares * 2 + num_squares + num_squares * 4;
+		}
+
+		public void writeTo(ByteBuffer buffer) {
+			buffer.put(reach);
+			buffer.asShortBuffer().put(exposure);
+			buffer.position(buffer.position() + exposure.length * 2);
+			buffer.put(kinds);
+			buffer.asIntBuffer().put(regions);
+			buffer.position(buffer.position() + regions.length * 4);
+		}
+
+		public static TerrainAnalysis readFrom(ByteBuffer buffer, int width, int height) {
+			final int num_squares = width * height;
+			final byte[] reach = new byte[MapTables.DX.length * num_squares];
+			final short[] exposure = new short[WeaponType.values().length * num_squares];
+			final byte[] kinds = new byte[num_squares];
+			final int[] regions = new int[num_squares];
+			buffer.get(reach);
+			buffer.asShortBuffer().get(exposure);
+			buffer.position(buffer.position() + exposure.length * 2);
+			buffer.get(kinds);
+			buffer.asIntBuffer().get(regions);
+			buffer.position(buffer.position() + regions.length * 4);
+			return new TerrainAnalysis(width, height, reach, exposure, kinds, regions);
+		}
+
+		// the same answer as World.canShooterShootTarget, for ranges up to MAX_RANGE
+		public boolean canShoot(Point shooter, Point target, int range) {
+			final int dx = target.getX() - shooter.getX();
+			final int dy = target.getY() - shooter.getY();
+			final int distance = Math.max(Math.abs(dx), Math.abs(dy));
+			if (distance == 0 || distance > range || (dx != 0 && dy != 0 && Math.abs(dx) != Math.abs(dy))) {
+				return false;
+			}
+			if (!isWithinBounds(shooter) || !isWithinBounds(target)) {
+				return false;
+			}
+			final int d = MapTables.directionIndex(Integer.signum(dx), Integer.signum(dy));
+			return reach[d * width * height + shooter.getY() * width + shooter.getX()] >= distance;
+		}
+
+		public int exposureOf(Point p, WeaponType weapon) {
+			return isWithinBounds(p) ? exposure[weapon.ordinal() * width * height + p.getY() * width + p.getX()] : 0;
+		}
+
+		public byte kindOf(Point p) {
+			return isWithinBounds(p) ? kinds[p.getY() * width + p.getX()] : OPEN;
+		}
+
+		private boolean isWithinBounds(Point p) {
+			return p.getX() >= 0 && p.getY() >= 0 && p.getX() < width && p.getY() < height;
+		}
+	}
+
+	// One MapTables per map for the whole process, so however many PlayerAIs share a JVM (self-play, batch
+	// evaluation) each map's tables are built or loaded once. The first PlayerAI to ask for a map builds them
+	// in its own thread, and any others asking meanwhile wait on the same FutureTask. After that a lookup is a
+	// ConcurrentHashMap read and a get on a finished FutureTask, neither of which takes a lock.
+	// MapTables never change once built (but for what they remember in ConcurrentHashMaps), and FutureTask.get
+	// publishes them safely to every thread.
+	private static final class MapTableRegistry {
+		private final static ConcurrentHashMap<String, FutureTask<MapTables>> tables_by_map = new ConcurrentHashMap<>();
+
+		// use_disk_cache is false for maps that aren't the one the client loaded
+		public static MapTables tablesFor(final World world, final boolean use_disk_cache) {
+			final String key = keyFor(world);
+			FutureTask<MapTables> task = tables_by_map.get(key);
+			if (task == null) {
+				final FutureTask<MapTables> new_task = new FutureTask<>(new Callable<MapTables>() { @Override public MapTables call() {
+					return use_disk_cache ? MapTableCache.load(world) : MapTables.compute(world);
+				}});
+				task = tables_by_map.putIfAbsent(key, new_task);
+				if (task == null) {
+					task = new_task;
+					new_task.run();
+				}
+			}
+
+			try {
+				return task.get();
+			} catch (ExecutionException e) {
+				tables_by_map.remove(key, task); // let the next caller try again
+				throw new IllegalStateException("Couldn't build map tables", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return MapTables.compute(world);
+			}
+		}
+
+		public static void clear() {
+			tables_by_map.clear();
+		}
+
+		// the tables only depend on the size of the map and which squares block movement and bullets
+		private static String keyFor(World world) {
+			final int width = world.getWidth();
+			final int height = world.getHeight();
+			final byte[] blocking = new byte[width * height];
+			for (int index = 0; index < blocking.length; ++index) {
+				final TileType tile = world.getTile(new Point(index % width, index / width));
+				blocking[index] = (byte)((tile.doesBlockMovement() ? 1 : 0) | (tile.doesBlockBullets() ? 2 : 0));
+			}
+			try {
+				final StringBuilder key = new StringBuilder(width + "x" + height + ":");
+				for (byte b : MessageDigest.getInstance("SHA-1").digest(blocking)) {
+					key.append(String.format("%02x", b));
+				}
+				return key.toString();
+			} catch (NoSuchAlgorithmException e) {
+				return width + "x" + height + ":" + Arrays.hashCode(blocking);
+			}
+		}
+	}
+
+	// HPA* (hierarchical pathfinding), for maps too big for an all-pairs table. The map is cut into SIZE x SIZE
+	// sectors, and each entrance (a run of squares open to the next sector) gets a node on either side of it.
+	// The abstract graph joins those across the entrance, and to the other nodes of their sector, by path
+	// lengths found with BFSs that stay inside the sector.
+	// A query BFSs inside the start's and end's sectors and A*s across the abstract graph in between, so it
+	// costs about the number of sectors crossed rather than the number of squares. Paths can come out a
+	// little longer than the shortest, since they only cross sector borders at the nodes.
+	private static final class SectorGraph {
+		final static int SIZE = 10;
+		final static int LONG_ENTRANCE = 6; // entrances this long get a node at each end, shorter ones one in the middle
+
+		final int width;
+		final int height;
+		final int sectors_across;
+		final byte[] moves; // as from MapTables.movesOf
+		final int[] node_squares; // node -> square index
+		final int[][] sector_nodes; // sector -> its nodes
+		final int[][] edge_targets; // node -> nodes it's joined to
+		final int[][] edge_lengths; // node -> path length to each of edge_targets
+
+		private SectorGraph(int width, int height, byte[] moves, int[] node_squares, int[][] sector_nodes, int[][] edge_targets, int[][] edge_lengths) {
+			this.width = width;
+			this.height = height;
+			this.sectors_across = (width + SIZE - 1) / SIZE;
+			this.moves = moves;
+			this.node_squares = node_squares;
+			this.sector_nodes = sector_nodes;
+			this.edge_targets = edge_targets;
+			this.edge_lengths = edge_lengths;
+		}
+
+		public static SectorGraph compute(int width, int height, byte[] moves) {
+			final int sectors_across = (width + SIZE - 1) / SIZE;
+			final int sectors_down = (height + SIZE - 1) / SIZE;
+			final int[] node_of_square = new int[width * height];
+			Arrays.fill(node_of_square, -1);
+			final ArrayList<Integer> node_squares = new ArrayList<>();
+			final ArrayList<ArrayList<int[]>> edges = new ArrayList<>(); // node -> { target, length }
+
+			// entrances across the vertical borders, then across the horizontal ones
+			final int east = MapTables.directionIndex(1, 0);
+			final int south = MapTables.directionIndex(0, 1);
+			for (int x = SIZE - 1; x + 1 < width; x += SIZE) {
+				for (int sector_top = 0; sector_top < height; sector_top += SIZE) {
+					final int sector_bottom = Math.min(sector_top + SIZE, height);
+					int run_start = -1;
+					for (int y = sector_top; y <= sector_bottom; ++y) {
+						final boolean open = y < sector_bottom && (moves[y * width + x] & (1 << east)) != 0;
+						if (open && run_start < 0) {
+							run_start = y;
+						} else if (!open && run_start >= 0) {
+							for (int entrance_y : entranceSquares(run_start, y - 1)) {
+								addCrossing(entrance_y * width + x, entrance_y * width + x + 1, node_of_square, node_squares, edges);
+							}
+							run_start = -1;
+						}
+					}
+				}
+			}
+			for (int y = SIZE - 1; y + 1 < height; y += SIZE) {
+				for (int sector_left = 0; sector_left < width; sector_left += SIZE) {
+					final int sector_right = Math.min(sector_left + SIZE, width);
+					int run_start = -1;
+					for (int x = sector_left; x <= sector_right; ++x) {
+						final boolean open = x < sector_right && (moves[y * width + x] & (1 << south)) != 0;
+						if (open && run_start < 0) {
+							run_start = x;
+						} else if (!open && run_start >= 0) {
+							for (int entrance_x : entranceSquares(run_start, x - 1)) {
+								addCrossing(y * width + entrance_x, (y + 1) * width + entrance_x, node_of_square, node_squares, edges);
+							}
+							run_start = -1;
+						}
+					}
+				}
+			}
+
+			final int[] squares = new int[node_squares.size()];
+			final ArrayList<ArrayList<Integer>> nodes_by_sector = new ArrayList<>();
+			for (int sector = 0; sector < sectors_across * sectors_down; ++sector) {
+				nodes_by_sector.add(new ArrayList<Integer>());
+			}
+			for (int node = 0; node < squares.length; ++node) {
+				squares[node] = node_squares.get(node);
+				nodes_by_sector.get(sectorOf(squares[node], width, sectors_across)).add(node);
+			}
+			final int[][] sector_nodes = new int[nodes_by_sector.size()][];
+			for (int sector = 0; sector < sector_nodes.length; ++sector) {
+				sector_nodes[sector] = new int[nodes_by_sector.get(sector).size()];
+				for (int i = 0; i < sector_nodes[sector].length; ++i) {
+					sector_nodes[sector][i] = nodes_by_sector.get(sector).get(i);
+				}
+			}
+
+			// join up the nodes inside each sector
+			final SectorGraph unjoined = new SectorGraph(width, height, moves, squares, sector_nodes, null, null);
+			for (int[] nodes : sector_nodes) {
+				for (int node : nodes) {
+					final short[] sector_distances = unjoined.distancesInSector(squares[node]);
+					for (int other : nodes) {
+						final short distance = sector_distances[unjoined.indexInSector(squares[other])];
+						if (other != node && distance != DistanceField.UNREACHABLE) {
+							edges.get(node).add(new int[] { other, distance });
+						}
+					}
+				}
+			}
+
+			final int[][] edge_targets = new int[squares.length][];
+			final int[][] edge_lengths = new int[squares.length][];
+			for (int node = 0; node < squares.length; ++node) {
+				final ArrayList<int[]> node_edges = edges.get(node);
+				edge_targets[node] = new int[node_edges.size()];
+				edge_lengths[node] = new int[node_edges.size()];
+				for (int i = 0; i < node_edges.size(); ++i) {
+					edge_targets[node][i] = node_edges.get(i)[0];
+					edge_lengths[node][i] = node_edges.get(i)[1];
+				}
+			}
+			return new SectorGraph(width, height, moves, squares, sector_nodes, edge_targets, edge_lengths);
+		}
+
+		private static int[] entranceSquares(int first, int last) {
+			return last - first + 1 >= LONG_ENTRANCE ? new int[] { first, last } : new int[] { (first + last) / 2 };
+		}
+
+		private static void addCrossing(int a, int b, int[] node_of_square, ArrayList<Integer> node_squares, ArrayList<ArrayList<int[]>> edges) {
+			for (int square : new int[] { a, b }) {
+				if (node_of_square[square] < 0) {
+					node_of_square[square] = node_squares.size();
+					node_squares.add(square);
+					edges.add(new ArrayList<int[]>());
+				}
+			}
+			edges.get(node_of_square[a]).add(new int[] { node_of_square[b], 1 });
+			edges.get(node_of_square[b]).add(new int[] { node_of_square[a], 1 });
+		}
+
+		private static int sectorOf(int square, int width, int sectors_across) {
+			return (square / width / SIZE) * sectors_across + (square % width) / SIZE;
+		}
+
+		private int sectorOf(int square) {
+			return sectorOf(square, width, sectors_across);
+		}
+
+		private int indexInSector(int square) {
+			return ((square / width) % SIZE) * SIZE + (square % width) % SIZE;
+		}
+
+		// path lengths from square to the rest of its sector, staying inside the sector, by indexInSector
+		private short[] distancesInSector(int square) {
+			final short[] distances = new short[SIZE * SIZE];
+			Arrays.fill(distances, DistanceField.UNREACHABLE);
+			final int sector = sectorOf(square);
+			final int[] queue = new int[SIZE * SIZE];
+			int head = 0;
+			int tail = 0;
+			distances[indexInSector(square)] = 0;
+			queue[tail++] = square;
+			while (head < tail) {
+				final int index = queue[head++];
+				final int x = index % width;
+				final int y = index / width;
+				for (int d = 0; d < MapTables.DX.length; ++d) {
+					if ((moves[index] & (1 << d)) == 0) {
+						continue;
+					}
+					final int n_index = (y + MapTables.DY[d]) * width + x + MapTables.DX[d];
+					if (sectorOf(n_index) == sector && distances[indexInSector(n_index)] == DistanceField.UNREACHABLE) {
+						distances[indexInSector(n_index)] = (short)(distances[indexInSector(index)] + 1);
+						queue[tail++] = n_index;
+					}
+				}
+			}
+			return distances;
+		}
+
+		// DistanceField.UNREACHABLE if there's no path
+		public int pathLength(int from, int to) {
+			return search(from, to, null);
+		}
+
+		// NOWHERE if there's no path, or from is to
+		public Direction nextDirection(int from, int to) {
+			final int[] waypoint = new int[1];
+			if (from == to || search(from, to, waypoint) == DistanceField.UNREACHABLE) {
+				return Direction.NOWHERE;
+			}
+
+			final int x = from % width;
+			final int y = from / width;
+			if (sectorOf(waypoint[0]) != sectorOf(from)) { // the waypoint's just across a sector border
+				for (int d = 0; d < MapTables.DX.length; ++d) {
+					if ((moves[from] & (1 << d)) != 0 && (y + MapTables.DY[d]) * width + x + MapTables.DX[d] == waypoint[0]) {
+						return DistanceField.MOVE_DIRECTIONS[d];
+					}
+				}
+				return Direction.NOWHERE;
+			}
+			final short[] to_waypoint = distancesInSector(waypoint[0]);
+			for (int d = 0; d < MapTables.DX.length; ++d) {
+				if ((moves[from] & (1 << d)) == 0) {
+					continue;
+				}
+				final int n_index = (y + MapTables.DY[d]) * width + x + MapTables.DX[d];
+				if (sectorOf(n_index) == sectorOf(from) && to_waypoint[indexInSector(n_index)] == to_waypoint[indexInSector(from)] - 1) {
+					return DistanceField.MOVE_DIRECTIONS[d];
+				}
+			}
+			return Direction.NOWHERE;
+		}
+
+		// Returns the path length, and sets waypoint[0] (if given) to the first square along the path that's
+		// either a node or to itself, other than from
+		private int search(int from, int to, int[] waypoint) {
+			if (from == to) {
+				return 0;
+			}
+			final int from_sector = sectorOf(from);
+			final int to_sector = sectorOf(to);
+			final short[] from_distances = distancesInSector(from);
+			final short[] to_distances = distancesInSector(to); // moves are reversible, so these are also distances to "to"
+
+			int best = DistanceField.UNREACHABLE;
+			int best_waypoint = -1;
+			if (from_sector == to_sector && from_distances[indexInSector(to)] != DistanceField.UNREACHABLE) {
+				best = from_distances[indexInSector(to)];
+				best_waypoint = to;
+			}
+
+			// A* over the nodes, starting from every node reachable in from's sector, and stopping at to's sector
+			final HashMap<Integer, Integer> lengths = new HashMap<>();
+			final HashMap<Integer, Integer> first_squares = new HashMap<>(); // first square after from on the best path to the node
+			final PriorityQueue<long[]> open = new PriorityQueue<>(16, new Comparator<long[]>() {
+				@Override
+				public int compare(long[] a, long[] b) { return Long.compare(a[0], b[0]); }
+			});
+			for (int node : sector_nodes[from_sector]) {
+				final int length = from_distances[indexInSector(node_squares[node])];
+				if (length != DistanceField.UNREACHABLE) {
+					lengths.put(node, length);
+					first_squares.put(node, length == 0 ? -1 : node_squares[node]);
+					open.add(new long[] { length + estimate(node_squares[node], to), node, length });
+				}
+			}
+			while (!open.isEmpty()) {
+				final long[] entry = open.poll();
+				if (entry[0] >= best) {
+					break;
+				}
+				final int node = (int)entry[1];
+				final int length = (int)entry[2];
+				if (length > lengths.get(node)) {
+					continue; // already found a shorter way here
+				}
+				if (sectorOf(node_squares[node]) == to_sector) {
+					final int to_length = to_distances[indexInSector(node_squares[node])];
+					if (to_length != DistanceField.UNREACHABLE && length + to_length < best) {
+						best = length + to_length;
+						best_waypoint = first_squares.get(node) >= 0 ? first_squares.get(node) : to;
+					}
+				}
+				for (int i = 0; i < edge_targets[node].length; ++i) {
+					final int target = edge_targets[node][i];
+					final int target_length = length + edge_lengths[node][i];
+					final Integer known_length = lengths.get(target);
+					if (known_length == null || target_length < known_length) {
+						lengths.put(target, target_length);
+						first_squares.put(target, first_squares.get(node) >= 0 ? first_squares.get(node) : node_squares[target]);
+						open.add(new long[] { target_length + estimate(node_squares[target], to), target, target_length });
+					}
+				}
+			}
+
+			if (waypoint != null) {
+				waypoint[0] = best_waypoint;
+			}
+			return best;
+		}
+
+		// a step can move one square along both axes at once, so this never overestimates
+		private int estimate(int from, int to) {
+			return Math.max(Math.abs(from % width - to % width), Math.abs(from / width - to / width));
+		}
+	}
+
+	// Keeps MapTables between matches, in Maps/<map>.tables, next to the map's .nac. The file starts with a
+	// hash of the .nac, so a recompiled map (or a bump of FORMAT_VERSION) gets its tables rebuilt and rewritten.
+	// Any trouble with the file just means building the tables like there was no cache.
+	// The client has loaded its map by the time it makes a PlayerAI, so the file is read then (see preload),
+	// before the first turn. Building the tables has to wait for the first turn, which brings the tiles.
+	private static final class MapTableCache {
+		final static int MAGIC = 0x43545a54; // "CTZT"
+		final static int FORMAT_VERSION = 3;
+		final static String EXTENSION = ".tables";
+		final static int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4;
+
+		// what preload found for a .nac; tables is null if there was no usable cache file
+		private static final class Preloaded {
+			final File nac_file;
+			final long map_hash;
+			final MapTables tables;
+
+			Preloaded(File nac_file, long map_hash, MapTables tables) {
+				this.nac_file = nac_file;
+				this.map_hash = map_hash;
+				this.tables = tables;
+			}
+		}
+		private static volatile Preloaded preloaded = null;
+
+		public static void preload() {
+			final File nac_file = currentMapFile();
+			final Preloaded already = preloaded;
+			if (nac_file == null || !nac_file.isFile() || (already != null && already.nac_file.equals(nac_file))) {
+				return;
+			}
+			final long start = System.currentTimeMillis();
+			final File cache_file = cacheFileFor(nac_file);
+			try {
+				final long map_hash = hashOf(nac_file);
+				final MapTables tables = read(cache_file, map_hash);
+				preloaded = new Preloaded(nac_file, map_hash, tables);
+				if (DEBUG_PRINTS && tables != null) {
+					System.out.println("Read map tables from " + cache_file + " in " + (System.currentTimeMillis() - start) + "ms");
+				}
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Couldn't use map table cache " + cache_file + " (" + e + ")");
+			}
+		}
+
+		public static void forget() {
+			preloaded = null;
+		}
+
+		public static MapTables load(World world) {
+			final long start = System.currentTimeMillis();
+			final File nac_file = currentMapFile();
+			if (nac_file == null || !nac_file.isFile()) {
+				return MapTables.compute(world);
+			}
+			final File cache_file = cacheFileFor(nac_file);
+
+			try {
+				final Preloaded ahead = preloaded;
+				final boolean was_preloaded = ahead != null && ahead.nac_file.equals(nac_file);
+				final long map_hash = was_preloaded ? ahead.map_hash : hashOf(nac_file);
+				MapTables tables = was_preloaded ? ahead.tables : read(cache_file, map_hash);
+				if (tables != null && (tables.width != world.getWidth() || tables.height != world.getHeight())) {
+					tables = null;
+				}
+				if (tables != null) {
+					if (DEBUG_PRINTS && !was_preloaded) { // preload said so already
+						System.out.println("Read map tables from " + cache_file + " in " + (System.currentTimeMillis() - start) + "ms");
+					}
+					return tables;
+				}
+
+				tables = MapTables.compute(world);
+				if (tables.distances != null) { // a SectorGraph is quick enough to build every time
+					write(cache_file, map_hash, tables);
+					if (DEBUG_PRINTS) {
+						System.out.println("Built map tables and wrote " + cache_file + " in " + (System.currentTimeMillis() - start) + "ms");
+					}
+				}
+				return tables;
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Couldn't use map table cache " + cache_file + " (" + e + ")");
+				return MapTables.compute(world);
+			}
+		}
+
+		private static File cacheFileFor(File nac_file) {
+			return new File(nac_file.getParentFile(), PathUtils.getFileNameWithoutExt(nac_file.getName()) + EXTENSION);
+		}
+
+		// the .nac the client loaded, or null when not running under the client (eg. in a test harness)
+		private static File currentMapFile() {
+			try {
+				final String map_name = Configuration.getMapName();
+				return map_name == null ? null : new File(PathUtils.MAPS_DIR_PATH + map_name + PathUtils.MAP_CACHE_FILE_EXT);
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+
+		private static long hashOf(File file) throws IOException {
+			try {
+				final byte[] digest = MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(file.toPath()));
+				return ByteBuffer.wrap(digest).getLong();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+		}
+
+		// null if there's no cache file, or it's for a different map or format
+		private static MapTables read(File cache_file, long map_hash) throws IOException {
+			if (!cache_file.isFile()) {
+				return null;
+			}
+			try (FileChannel channel = FileChannel.open(cache_file.toPath(), StandardOpenOption.READ)) {
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getLong() != map_hash) {
+					return null;
+				}
+				final int width = buffer.getInt();
+				final int height = buffer.getInt();
+				final int symmetry = buffer.getInt();
+				if (width <= 0 || height <= 0 || symmetry < 0 || symmetry >= Symmetry.values().length) {
+					return null;
+				}
+				final long num_distances = (long)MapTables.numRowsFor(width, height, Symmetry.values()[symmetry]) * width * height;
+				if (buffer.remaining() != num_distances * 2 + TerrainAnalysis.numBytesFor(width, height)) {
+					return null;
+				}
+				final short[] distances = new short[(int)num_distances];
+				buffer.asShortBuffer().get(distances);
+				buffer.position(buffer.position() + distances.length * 2);
+				return new MapTables(width, height, Symmetry.values()[symmetry], distances, TerrainAnalysis.readFrom(buffer, width, height));
+			}
+		}
+
+		// written to a temporary file and moved into place, so concurrent matches never see half a file
+		private static void write(File cache_file, long map_hash, MapTables tables) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + tables.distances.length * 2 + TerrainAnalysis.numBytesFor(tables.width, tables.height));
+			buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(map_hash).putInt(tables.width).putInt(tables.height).putInt(tables.symmetry.ordinal());
+			buffer.asShortBuffer().put(tables.distances);
+			buffer.position(buffer.position() + tables.distances.length * 2);
+			tables.terrain.writeTo(buffer);
+			buffer.rewind();
+
+			final Path temp_file = Files.createTempFile(cache_file.getParentFile().toPath(), cache_file.getName(), ".tmp");
+			try {
+				try (FileChannel channel = FileChannel.open(temp_file, StandardOpenOption.WRITE)) {
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+				try {
+					Files.move(temp_file, cache_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp_file, cache_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(temp_file);
+			}
+		}
+	}
+
+	private static interface MultiplierMap{ double multiplierFor(int index); }
+	private static interface UnitMultiplierMap{ MultiplierMap forUnit(UnitClient unit); }
+
+	private static final class ObjectPathLengthMultiplier implements UnitMultiplierMap {
+		private final World world;
+		private final ArrayList<Objective> objectives;
+		private final Strategy strategy;
+		private final CapturePlanner capture_planner;
+		private final PickupPlanner pickup_planner;
+
+		private ObjectPathLengthMultiplier(World world, ArrayList<Objective> objectives, Strategy strategy, CapturePlanner capture_planner, PickupPlanner pickup_planner) {
+			this.world = world;
+			this.objectives = objectives;
+			this.strategy = strategy;
+			this.capture_planner = capture_planner;
+			this.pickup_planner = pickup_planner;
+		}
+
+		@Override
+		public MultiplierMap forUnit(final UnitClient unit) {
+			return new MultiplierMap() { @Override public double multiplierFor(int index) {
+				return ObjectPathLengthMultiplier.this.multiplierFor(unit, index);
+			}};
+		}
+
+		private double multiplierFor(UnitClient unit, int index) {
+			Objective o = objectives.get(index);
+			switch (o.getType()) {
+			case PICKUP:
+				return strategy.pickupMultiplier(pickup_planner, unit, o.getPickup(world).getPickupType());
+			case CAPTURE:
+				return strategy.captureMultiplier(capture_planner, o.getControlPoint(world));
+			case SHOOT:
+				return strategy.shootMultiplier();
+			default:
+				return 1.0;
+			}
+
+		}
+	}
+
+	// Values each control point from who owns it, how close the enemy is to it and whether it's a mainframe,
+	// then splits them into points to attack (not ours) and points to defend (ours, with an enemy nearby).
+	// The ownership part of the value is only redone for points that changed hands since last turn,
+	// and the enemy distances are only redone if an enemy moved.
+	private static final class CapturePlanner {
+		final static double MAINFRAME_MULTIPLIER = PARAMS.mainframe_multiplier;
+		final static double FLAG_MULTIPLIER = PARAMS.flag_multiplier;
+		final static double ENEMY_OWNED_BONUS = PARAMS.enemy_owned_bonus; // taking it from them is worth more than taking a neutral one
+		final static double CONTESTED_PENALTY = PARAMS.contested_penalty; // harder to take if they're sitting next to it
+		final static int CONTESTED_DISTANCE = PARAMS.contested_distance; // enemy at most this many steps away makes a point contested
+
+		private Point[] positions = new Point[0];
+		private Team[] owners = new Team[0];
+		private double[] base_multipliers = new double[0];
+		private int[] nearest_enemy_distances = new int[0];
+		private Point[] last_enemy_positions = new Point[0];
+		private Team our_team = Team.NONE;
+
+		private final ArrayList<ControlPoint> to_attack = new ArrayList<>();
+		private final ArrayList<ControlPoint> to_defend = new ArrayList<>();
+
+		public void update(ControlPoint[] control_points, EnemyUnit[] enemy_units, World world, MapTables tables, Team our_team) {
+			boolean new_layout = our_team != this.our_team || control_points.length != positions.length;
+			this.our_team = our_team;
+			for (int i = 0; !new_layout && i < control_points.length; ++i) {
+				new_layout = !control_points[i].getPosition().equals(positions[i]);
+			}
+			if (new_layout) {
+				positions = getLocationsOf(control_points);
+				owners = new Team[control_points.length];
+				base_multipliers = new double[control_points.length];
+				nearest_enemy_distances = new int[control_points.length];
+				last_enemy_positions = null;
+			}
+
+			for (int i = 0; i < control_points.length; ++i) {
+				final Team owner = control_points[i].getControllingTeam();
+				if (owner != owners[i]) {
+					owners[i] = owner;
+					base_multipliers[i] = computeBaseMultiplier(control_points[i], owner);
+				}
+			}
+
+			final Point[] enemy_positions = getLocationsOf(enemy_units);
+			if (!Arrays.equals(enemy_positions, last_enemy_positions)) {
+				last_enemy_positions = enemy_positions;
+				for (int i = 0; i < positions.length; ++i) {
+					nearest_enemy_distances[i] = Integer.MAX_VALUE;
+					for (Point enemy_position : enemy_positions) {
+						nearest_enemy_distances[i] = Math.min(nearest_enemy_distances[i], getPathLengthWrapper(world, tables, enemy_position, positions[i]));
+					}
+				}
+			}
+
+			to_attack.clear();
+			to_defend.clear();
+			for (int i = 0; i < control_points.length; ++i) {
+				if (owners[i] != our_team) {
+					to_attack.add(control_points[i]);
+				} else if (isContested(i)) {
+					to_defend.add(control_points[i]);
+				}
+			}
+		}
+
+		public ArrayList<ControlPoint> getPointsToAttack() { return to_attack; }
+		public ArrayList<ControlPoint> getPointsToDefend() { return to_defend; }
+
+		public double multiplierFor(ControlPoint cp) {
+			for (int i = 0; i < positions.length; ++i) {
+				if (positions[i].equals(cp.getPosition())) {
+					if (owners[i] != our_team && isContested(i)) {
+						return base_multipliers[i] + CONTESTED_PENALTY;
+					} else {
+						return base_multipliers[i];
+					}
+				}
+			}
+			return cp.isMainframe() ? MAINFRAME_MULTIPLIER : FLAG_MULTIPLIER;
+		}
+
+		private boolean isContested(int index) {
+			return nearest_enemy_distances[index] <= CONTESTED_DISTANCE;
+		}
+
+		private double computeBaseMultiplier(ControlPoint cp, Team owner) {
+			double multiplier = cp.isMainframe() ? MAINFRAME_MULTIPLIER : FLAG_MULTIPLIER;
+			if (owner != our_team && owner != Team.NONE) {
+				multiplier -= ENEMY_OWNED_BONUS;
+			}
+			return multiplier;
+		}
+	}
+
+	// Scores pickups per unit: repair kits by missing health, shields by how few the unit has,
+	// and weapons by how much better they are than what the unit is carrying (worse weapons are worth nothing).
+	// A distance field to each pickup position is built once per map. The per-type field (nearest pickup of a type)
+	// is only rebuilt when a pickup of that type appears or disappears, so asking how far the
+	// nearest one is costs a table lookup rather than a path search.
+	private static final class PickupPlanner {
+		final static double BEST_MULTIPLIER = PARAMS.pickup_best_multiplier; // for a pickup the unit really wants
+		final static double WORST_MULTIPLIER = PARAMS.pickup_worst_multiplier; // for a pickup that does nothing for the unit
+		final static double SHIELD_VALUE = PARAMS.shield_value; // of the first shield; each one already held halves it
+		final static double DETOUR_VALUE = PARAMS.detour_value; // leave the current objective for anything worth at least this...
+		final static int DETOUR_DISTANCE = PARAMS.detour_distance; // ...if it's at most this many steps away
+
+		private final static int[] WEAPON_RATINGS = new int[WeaponType.values().length];
+		private final static int MAX_WEAPON_RATING_DELTA;
+		static {
+			int min_rating = Integer.MAX_VALUE;
+			int max_rating = 0;
+			for (WeaponType wt : WeaponType.values()) {
+				WEAPON_RATINGS[wt.ordinal()] = wt.getDamage() * wt.getRange();
+				min_rating = Math.min(min_rating, WEAPON_RATINGS[wt.ordinal()]);
+				max_rating = Math.max(max_rating, WEAPON_RATINGS[wt.ordinal()]);
+			}
+			MAX_WEAPON_RATING_DELTA = Math.max(1, max_rating - min_rating);
+		}
+
+		private final HashMap<Point, DistanceField> fields_by_position = new HashMap<>();
+		private final EnumMap<PickupType, HashSet<Point>> positions_by_type = new EnumMap<>(PickupType.class);
+		private final EnumMap<PickupType, DistanceField> fields_by_type = new EnumMap<>(PickupType.class);
+
+		public void update(World world) {
+			for (PickupType type : PickupType.values()) {
+				final HashSet<Point> positions = new HashSet<>(Arrays.asList(world.getPositionsOfPickupType(type)));
+				if (positions.equals(positions_by_type.get(type))) {
+					continue;
+				}
+
+				positions_by_type.put(type, positions);
+				if (positions.isEmpty()) {
+					fields_by_type.remove(type);
+				} else {
+					ArrayList<DistanceField> fields = new ArrayList<>(positions.size());
+					for (Point p : positions) {
+						fields.add(fieldFor(world, p));
+					}
+					fields_by_type.put(type, DistanceField.minOf(fields));
+				}
+			}
+		}
+
+		// 0.0 for useless, up to 1.0 for as good as it gets
+		public static double valueFor(UnitClient unit, PickupType type) {
+			switch (type) {
+			case REPAIR_KIT:
+				return Math.max(0, Constants.DEFAULT_UNIT_HEALTH - unit.getHealth()) / (double)Constants.DEFAULT_UNIT_HEALTH;
+			case SHIELD:
+				return SHIELD_VALUE / (1 << Math.min(unit.getNumShields(), 16));
+			case WEAPON_MINI_BLASTER:
+				return weaponValueFor(unit, WeaponType.MINI_BLASTER);
+			case WEAPON_SCATTER_GUN:
+				return weaponValueFor(unit, WeaponType.SCATTER_GUN);
+			case WEAPON_LASER_RIFLE:
+				return weaponValueFor(unit, WeaponType.LASER_RIFLE);
+			case WEAPON_RAIL_GUN:
+				return weaponValueFor(unit, WeaponType.RAIL_GUN);
+			default:
+				return 0.0;
+			}
+		}
+
+		private static double weaponValueFor(UnitClient unit, WeaponType wt) {
+			final int delta = WEAPON_RATINGS[wt.ordinal()] - WEAPON_RATINGS[unit.getCurrentWeapon().ordinal()];
+			return Math.max(0, delta) / (double)MAX_WEAPON_RATING_DELTA;
+		}
+
+		public double multiplierFor(UnitClient unit, PickupType type) {
+			return WORST_MULTIPLIER - (WORST_MULTIPLIER - BEST_MULTIPLIER) * valueFor(unit, type);
+		}
+
+		public int distanceToNearest(PickupType type, Point from) {
+			final DistanceField field = fields_by_type.get(type);
+			return field == null ? DistanceField.UNREACHABLE : field.distanceAt(from);
+		}
+
+		// A pickup next to the unit that's worth stopping for and that nobody else is going for, or null. Of those,
+		// the one that adds the fewest steps on the way to destination (which may be null), then the most valuable.
+		public Pickup findDetour(UnitClient unit, Point destination, World world, ArrayList<Objective> chosen_objectives) {
+			final Point my_pos = unit.getPosition();
+			Point best = null;
+			int best_length = Integer.MAX_VALUE;
+			double best_value = 0.0;
+			for (PickupType type : positions_by_type.keySet()) {
+				final double value = valueFor(unit, type);
+				if (value < DETOUR_VALUE || distanceToNearest(type, my_pos) > DETOUR_DISTANCE) {
+					continue;
+				}
+				for (Point p : positions_by_type.get(type)) {
+					final DistanceField field = fields_by_position.get(p);
+					final int to_pickup = field.distanceAt(my_pos);
+					if (to_pickup > DETOUR_DISTANCE) {
+						continue;
+					}
+					// the steps straight to destination are the same whichever pickup it is, so they're left out
+					final int length = to_pickup + (destination == null ? 0 : field.distanceAt(destination));
+					if (length > best_length || (length == best_length && value <= best_value)) {
+						continue;
+					}
+					boolean taken = false;
+					for (Objective o : chosen_objectives) {
+						taken |= o.getType() == Objective.Type.PICKUP && o.getLocationOfTarget(world, null).equals(p);
+					}
+					if (!taken) {
+						best = p;
+						best_length = length;
+						best_value = value;
+					}
+				}
+			}
+			return best == null ? null : world.getPickupAtPosition(best);
+		}
+
+		private DistanceField fieldFor(World world, Point p) {
+			DistanceField field = fields_by_position.get(p);
+			if (field == null) {
+				field = DistanceField.compute(world, p);
+				fields_by_position.put(p, field);
+			}
+			return field;
+		}
+	}
+
+	// Decides when shielding beats moving or shooting. Only looks at numbers doMove has already
+	// worked out for the turn, so it's constant time per unit.
+	private static final class ShieldPlanner {
+		final static double HEAVY_DAMAGE_FRACTION = PARAMS.heavy_damage_fraction; // of current health
+
+		// scaled_damage is the damage the attackers can do, already multiplied by the number of attackers (as doMove does).
+		// fight and shield_first are EngagementTable outcomes, UNKNOWN when we can't shoot back
+		public static boolean shouldShield(UnitClient me, int scaled_damage, int num_attackers, boolean can_shoot_back, int fight, int shield_first) {
+			if (num_attackers <= 0 || me.getNumShields() <= 0 || me.getShieldedTurnsRemaining() > 0) {
+				return false;
+			}
+
+			final int damage = scaled_damage / num_attackers;
+			if (damage >= me.getHealth()) {
+				return true; // shots land at the same time, so shooting back won't save us
+			}
+
+			// shields are scarce, so only when it turns a loss into a trade, or a trade into a win
+			if (fight != EngagementTable.UNKNOWN && shield_first != EngagementTable.UNKNOWN) {
+				return Integer.signum(shield_first) > Integer.signum(fight);
+			}
+
+			return num_attackers >= 2 && !can_shoot_back && damage >= me.getHealth() * HEAVY_DAMAGE_FRACTION;
+		}
+	}
+
+	// How an exchange of fire between one of our units and the enemy it's shooting ends, if nobody moves and
+	// everyone keeps shooting, for every health, shield, weapon pair and number of units shooting on each side.
+	// Damage is the weapon's times the square of the number of shooters (as doMove reckons it). The outcome is
+	// our health left minus theirs when the first of the two dies: > 0 we win, < 0 we lose, 0 we both go down.
+	// Enemies we can shoot aren't shielded, so only our shield is in the key. 1.4MB of bytes, filled in once.
+	private static final class EngagementTable {
+		final static int UNKNOWN = Integer.MIN_VALUE;
+		final static int MAX_HEALTH = Constants.DEFAULT_UNIT_HEALTH;
+		final static int MAX_SHIELD = Constants.SHIELD_DURATION_TURNS;
+		final static int MAX_ATTACKERS = Constants.NUM_UNITS_PER_SQUAD;
+		final static WeaponType[] WEAPONS = WeaponType.values();
+
+		private final static byte[] outcomes = build();
+
+		// keep shooting from now on
+		public static int fight(int my_health, int their_health, int my_shield, WeaponType mine, WeaponType theirs, int num_ours, int num_theirs) {
+			if (my_health <= 0 || their_health <= 0 || num_ours <= 0 || num_theirs <= 0) {
+				return UNKNOWN;
+			}
+			return outcomes[index(
+				Math.min(my_health, MAX_HEALTH), Math.min(their_health, MAX_HEALTH), Math.min(my_shield, MAX_SHIELD),
+				mine.ordinal(), theirs.ordinal(), Math.min(num_ours, MAX_ATTACKERS), Math.min(num_theirs, MAX_ATTACKERS)
+			)];
 		}
 
-		/* if (ATTACK_MODE) */ {
-			for (int i = 0; i < num_levels; ++i) {
-				if (!enemies_that_friendly_can_shoot.get(i).isEmpty()) {
-					FriendlyUnit me = friendly_units[i];
-					EnemyUnit enemy = enemy_units[enemies_that_friendly_can_shoot.get(i).get(max_damage_level_index[i])];
-
-					turn_data.setData(me, Objective.makeShootObjective(enemy), UnitAction.SHOOT, enemy.getPosition(), world);
-				}
+		// shield this turn (while the others shoot on), then shoot from the next one
+		public static int shieldFirst(int my_health, int their_health, WeaponType mine, WeaponType theirs, int num_ours, int num_theirs) {
+			if (my_health <= 0 || their_health <= 0 || num_ours <= 0 || num_theirs <= 0) {
+				return UNKNOWN;
 			}
-			
-			/*
-			for (FriendlyUnit me : friendly_units) {
-				for (EnemyUnit enemy : enemy_units) {
-					turn_data = canShootDoShoot(me, enemy, world, turn_data);
-					// TODO do something more intelligent that isn't order dependent...
-				}
+			final int their_health_left = their_health - damageOf(mine, num_ours - 1);
+			if (their_health_left <= 0) {
+				return Math.min(my_health, MAX_HEALTH);
 			}
-			*/
+			return fight(my_health, their_health_left, MAX_SHIELD - 1, mine, theirs, num_ours, num_theirs);
 		}
 
-		for (FriendlyUnit me : friendly_units) {
-			if (turn_data.objectives.getObjective(me).isNone()) {
-				// if nothing to do, kill, kill, kill!
-				// TODO helping might be better - look at other units' objectives
-				Point[] enemy_locations = getLocationsOf(enemy_units);
-				Integer closest_index = closestPointDjkstra(me.getPosition(), enemy_locations, world);
-				if (closest_index != null) {
-					EnemyUnit target = enemy_units[closest_index];
-					turn_data = canShootDoShoot(me, target, world, turn_data);
-					if (turn_data.objectives.getObjective(me).isNone() == true) {
-						// couldn't shoot, so move toward target
-						// TODO move in line-of-sight, taking into account weapon ranges.
-						turn_data = setMeToMove(me, target.getPosition(), Objective.makeShootObjective(target), turn_data, world);
-					}
-				}
-			}
+		private static int damageOf(WeaponType weapon, int num_shooters) {
+			return weapon.getDamage() * num_shooters * num_shooters;
 		}
 
-		// handle trying to shoot someone, but your teammate is in the way.
-		for (FriendlyUnit me : friendly_units) {
-			final Objective my_o = turn_data.objectives.getObjective(me);
-			if (   my_o.getType() == PlayerAI.Objective.Type.SHOOT
-				&& turn_data.getActionType(me) == UnitAction.MOVE
-				&& findUnitAt(turn_data.getMovePoint(me), friendly_units) != null
-			) {
-				Point betterNextPoint = reRoute(me.getPosition(), my_o.getEnemy(enemy_units).getPosition(), world, new ShouldVisitPointTester() { @Override public boolean shouldVisitPoint(Point p) {
-					return findUnitAt(p, friendly_units) == null;
-				}});
-				if (betterNextPoint != null) {
-					setMeToMove(me, betterNextPoint, my_o, turn_data, world);
+		private static int index(int my_health, int their_health, int my_shield, int mine, int theirs, int num_ours, int num_theirs) {
+			int i = my_health - 1;
+			i = i * MAX_HEALTH + (their_health - 1);
+			i = i * (MAX_SHIELD + 1) + my_shield;
+			i = i * WEAPONS.length + mine;
+			i = i * WEAPONS.length + theirs;
+			i = i * MAX_ATTACKERS + (num_ours - 1);
+			i = i * MAX_ATTACKERS + (num_theirs - 1);
+			return i;
+		}
+
+		private static byte[] build() {
+			final byte[] outcomes = new byte[MAX_HEALTH * MAX_HEALTH * (MAX_SHIELD + 1) * WEAPONS.length * WEAPONS.length * MAX_ATTACKERS * MAX_ATTACKERS];
+			for (int mine = 0; mine < WEAPONS.length; ++mine) {
+				for (int theirs = 0; theirs < WEAPONS.length; ++theirs) {
+					for (int num_ours = 1; num_ours <= MAX_ATTACKERS; ++num_ours) {
+						for (int num_theirs = 1; num_theirs <= MAX_ATTACKERS; ++num_theirs) {
+							final int damage_to_them = damageOf(WEAPONS[mine], num_ours);
+							final int damage_to_me = damageOf(WEAPONS[theirs], num_theirs);
+							for (int my_shield = 0; my_shield <= MAX_SHIELD; ++my_shield) {
+								for (int my_health = 1; my_health <= MAX_HEALTH; ++my_health) {
+									for (int their_health = 1; their_health <= MAX_HEALTH; ++their_health) {
+										// shots land at the same time, so both take this turn's damage
+										int my_left = my_health;
+										int their_left = their_health;
+										int shield_left = my_shield;
+										while (my_left > 0 && their_left > 0) {
+											their_left -= damage_to_them;
+											if (shield_left > 0) {
+												--shield_left;
+											} else {
+												my_left -= damage_to_me;
+											}
+										}
+										outcomes[index(my_health, their_health, my_shield, mine, theirs, num_ours, num_theirs)]
+											= (byte)(Math.max(my_left, 0) - Math.max(their_left, 0));
+									}
+								}
+							}
+						}
+					}
 				}
 			}
+			return outcomes;
 		}
+	}
 
-		// handle trying to go nowhere with an enemy bot
-		for (FriendlyUnit me : friendly_units) {
-			if (true
-				&& last_turn_data.getActionType(me) == UnitAction.MOVE
-				&& last_turn_data.getActionType(me) == turn_data.getActionType(me)
-				&& last_turn_data.getMovePoint(me) == last_turn_data.getMovePoint(me)
-			) {
-				// not sure what to do
+	// Uses the time between turns, while the server and the other bot are busy, to ask what the next turn will
+	// probably ask, assuming our units get where they're going and the enemies stay put:
+	//   - path lengths from our units and the enemies to every control point, pickup and unit, and the way to each
+	//     unit's objective (MapTables remembers them, on maps where they're searches)
+	//   - getSquareSafety around where our units will be, in a ThreatGrid that's only used if the enemies really
+	//     didn't move or change weapons
+	// Everything it works out is either true whatever happens (path lengths) or checked before it's used (the
+	// ThreatGrid). A new turn stops it, so it never competes with doMove for the CPU: turnStarted waits for a
+	// running job to give up, which it checks for between squares and between queries.
+	// The World isn't safe to read from another thread, so doMove's thread copies what a job needs into it, and
+	// the job only reads that and the MapTables (which answer line of sight for every weapon's range).
+	// The thread ends when PlayerAI.close() is called, or soon after its PlayerAI is garbage collected, so a
+	// process that plays many games (the benchmark, self-play) doesn't collect threads and old worlds.
+	private static final class SpeculativePlanner implements Runnable {
+		final static int THREAT_RADIUS = 1; // squares around each unit's next position that reRoute might look at
+		final static long IDLE_CHECK_MS = 1000; // how often an idle thread checks whether its PlayerAI is still around
+
+		private static final class Job {
+			final int turn;
+			final MapTables tables;
+			final Point[] sources;
+			final Point[] destinations;
+			final Point[] unit_positions; // where they'll be
+			final Point[] objective_positions; // and where they're headed, index for index. may contain nulls
+			final Point[] enemy_positions;
+			final WeaponType[] enemy_weapons;
+
+			Job(int turn, MapTables tables, Point[] sources, Point[] destinations, Point[] unit_positions, Point[] objective_positions, Point[] enemy_positions, WeaponType[] enemy_weapons) {
+				this.turn = turn;
+				this.tables = tables;
+				this.sources = sources;
+				this.destinations = destinations;
+				this.unit_positions = unit_positions;
+				this.objective_positions = objective_positions;
+				this.enemy_positions = enemy_positions;
+				this.enemy_weapons = enemy_weapons;
 			}
 		}
 
-		// TODO check here if shoot objective is same as last time, and we wanted to move, and we didn't move
-		// it's either a 2 bots trying to got the same square or a bot is in the way. Either case, renegotiate.
-
-		// TODO resolve team blocking by having storing all requests to move, and arbitrating here (ie. right at the end)
+		private final ArrayBlockingQueue<Job> jobs = new ArrayBlockingQueue<>(1);
+		private volatile int turn = 0; // bumped as each turn starts (and on stop), which tells a running job to give up
+		private volatile ThreatGrid threat_grid = null;
+		private volatile boolean stopped = false;
+		private final ReentrantLock working = new ReentrantLock(); // held while a job runs
+		private final WeakReference<PlayerAI> owner;
+		private Thread thread;
 
-		// will print, if DEBUG_PRINTS is true, and should be guaranteed to not do so by the "kill, kill, kill" block
-		// other reasons you might not move:
-		//     another robot is in the way (if this mutually happens in a corridor... nothing happens sometimes...)
-		//     another robot (might be on your team!) tried to move to the same place
-		checkForNoneObjectives(turn_data.objectives, friendly_units);
-		printTurnData(turn_data, friendly_units, enemy_units, world, DEBUG_PRINTS);
+		private SpeculativePlanner(PlayerAI owner) {
+			this.owner = new WeakReference<>(owner);
+		}
 
-		// do moves
-		applyMoves(turn_data, friendly_units, enemy_units);
+		public static SpeculativePlanner start(PlayerAI owner) {
+			final SpeculativePlanner planner = new SpeculativePlanner(owner);
+			planner.thread = new Thread(planner, "PlayerAI speculation");
+			planner.thread.setDaemon(true);
+			planner.thread.setPriority(Thread.MIN_PRIORITY);
+			planner.thread.start();
+			return planner;
+		}
 
-		// done making moves - save new objectives as the last ones
-		last_turn_data = turn_data;
-	}
+		// returns once the thread has finished, unless that takes longer than IDLE_CHECK_MS
+		public void stop() {
+			stopped = true;
+			++turn; // so a job that's running gives up at its next query
+			jobs.clear();
+			thread.interrupt();
+			try {
+				thread.join(IDLE_CHECK_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 
-	// Return a safety value of the provided square/point
-	// Lower the value the better.
-	// Lowest value returned is 0.0 -> Safe
-	// CAUTION_VAL returned -> Enemy can move to a square to be in line of sight in one turn
-	// DANGER_VAL returned -> Currently in enemy's line of sight
-	static double getSquareSafety(Point point, EnemyUnit[] enemyUnits, World world) {
-		double safety = 0.0;
+		// Call first thing in doMove. The ThreatGrid from the last turn's job, if it finished and the enemies are
+		// where it thought they'd be, otherwise null
+		public ThreatGrid turnStarted(EnemyUnit[] enemy_units) {
+			++turn; // only doMove's thread writes it
+			jobs.clear();
+			working.lock(); // a running job sees the new turn and gives up within a query
+			working.unlock();
+			final ThreatGrid grid = threat_grid;
+			threat_grid = null;
+			return grid != null && grid.isFor(enemy_units) ? grid : null;
+		}
 
-		for (EnemyUnit unit : enemyUnits) {
-			WeaponType weapon = unit.getCurrentWeapon();
-			int range = weapon.getRange();
+		// Call last thing in doMove
+		public void turnFinished(TurnData turn_data, FriendlyUnit[] friendly_units, EnemyUnit[] enemy_units, World world, MapTables tables) {
+			if (stopped || tables == null) {
+				return;
+			}
+			final Point[] unit_positions = new Point[friendly_units.length];
+			final Point[] objective_positions = new Point[friendly_units.length];
+			for (int i = 0; i < friendly_units.length; ++i) {
+				final FriendlyUnit me = friendly_units[i];
+				final Point move_point = turn_data.getMovePoint(me);
+				unit_positions[i] = turn_data.getActionType(me) == UnitAction.MOVE && move_point != null ? move_point : me.getPosition();
+				final Objective objective = turn_data.objectives.getObjective(me);
+				final boolean has_target = objective != null && (objective.getType() != Objective.Type.SHOOT || objective.getEnemy(enemy_units) != null);
+				objective_positions[i] = has_target ? objective.getLocationOfTarget(world, enemy_units) : null;
+			}
+			final Point[] enemy_positions = getLocationsOf(enemy_units);
+			final WeaponType[] enemy_weapons = new WeaponType[enemy_units.length];
+			for (int i = 0; i < enemy_units.length; ++i) {
+				enemy_weapons[i] = enemy_units[i].getCurrentWeapon();
+			}
 
-			Point position = unit.getPosition();
+			final ArrayList<Point> sources = new ArrayList<>(Arrays.asList(unit_positions));
+			sources.addAll(Arrays.asList(enemy_positions));
+			final ArrayList<Point> destinations = new ArrayList<>(sources);
+			destinations.addAll(Arrays.asList(getLocationsOf(world.getControlPoints())));
+			destinations.addAll(Arrays.asList(getLocationsOf(world.getPickups())));
 
-			boolean in_range = world.canShooterShootTarget(position, point, range);
+			jobs.offer(new Job(turn, tables, sources.toArray(new Point[0]), destinations.toArray(new Point[0]),
+				unit_positions, objective_positions, enemy_positions, enemy_weapons));
+		}
 
-			if (in_range) {
-				safety = Math.max(safety, DANGER_VAL);
-				break;
+		@Override
+		public void run() {
+			while (!stopped && owner.get() != null) {
+				final Job job; // polled rather than taken, so the last one's world isn't held on to while idle
+				try {
+					job = jobs.poll(IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (job == null) {
+					continue;
+				}
+				working.lock();
+				try {
+					work(job);
+				} catch (RuntimeException e) {
+					// whatever it was, the next turn just works it out itself
+				} finally {
+					working.unlock();
+				}
 			}
-			else {
-				if (safety < CAUTION_VAL) {
-					Point[] adjacent_points = getAdjacentPoints(position);
+		}
 
-					for (Point p : adjacent_points) {
-						if (world.canShooterShootTarget(p, point, range)) {
-							// Can be dangerous next turn
-							safety = Math.max(safety, CAUTION_VAL);
-							break;
+		private void work(Job job) {
+			// the threat grid first; it's cheap and helps on every map
+			final HashMap<Point, Double> safety = new HashMap<>();
+			for (Point unit_position : job.unit_positions) {
+				for (int dx = -THREAT_RADIUS; dx <= THREAT_RADIUS; ++dx) {
+					for (int dy = -THREAT_RADIUS; dy <= THREAT_RADIUS; ++dy) {
+						if (job.turn != turn) {
+							return;
+						}
+						final Point p = new Point(unit_position.getX() + dx, unit_position.getY() + dy);
+						if (!safety.containsKey(p)) {
+							safety.put(p, getSquareSafety(p, job.enemy_positions, job.enemy_weapons, null, job.tables)); // never needs the world
 						}
 					}
 				}
 			}
-		}
+			threat_grid = new ThreatGrid(job.enemy_positions, job.enemy_weapons, safety);
 
-		return safety;
+			if (!routesBySectors(job.tables)) {
+				return; // path lengths are already lookups
+			}
+			for (int i = 0; i < job.unit_positions.length; ++i) {
+				if (job.objective_positions[i] != null && job.turn == turn) {
+					job.tables.nextDirection(job.unit_positions[i], job.objective_positions[i]);
+				}
+			}
+			for (Point source : job.sources) {
+				for (Point destination : job.destinations) {
+					if (job.turn != turn) {
+						return;
+					}
+					job.tables.pathLength(source, destination);
+				}
+			}
+		}
 	}
 
-	private interface ShouldVisitPointTester {
-		boolean shouldVisitPoint(Point p);
-	}
+	// getSquareSafety for some squares, worked out before the turn for enemies where they were last turn
+	private static final class ThreatGrid {
+		private final Point[] enemy_positions;
+		private final WeaponType[] enemy_weapons;
+		private final HashMap<Point, Double> safety;
 
-	// Return a safe next move (Point to move to) to advance from src towards dst
-	// Return null if there is not safe next move or the best safe move is to standby or move away from the dst
-	static Point reRoute(Point src, Point dst, World world, ShouldVisitPointTester visit_point_tester) {
-		Direction direction = world.getNextDirectionInPath(src, dst);
-		Point next_point = direction.movePoint(src);
+		ThreatGrid(Point[] enemy_positions, WeaponType[] enemy_weapons, HashMap<Point, Double> safety) {
+			this.enemy_positions = enemy_positions;
+			this.enemy_weapons = enemy_weapons;
+			this.safety = safety;
+		}
 
-		int current_distance = getPathLengthWrapper(world, src, dst);
-		int optimal_distance = getPathLengthWrapper(world, next_point, dst);
+		public boolean isFor(EnemyUnit[] enemy_units) {
+			if (enemy_units.length != enemy_positions.length) {
+				return false;
+			}
+			for (int i = 0; i < enemy_units.length; ++i) {
+				if (!enemy_units[i].getPosition().equals(enemy_positions[i]) || enemy_units[i].getCurrentWeapon() != enemy_weapons[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
 
-		Point[] adjacent_points = getAdjacentPoints(src);
+		// null if it wasn't worked out
+		public Double safetyOf(Point p) {
+			return safety.get(p);
+		}
+	}
 
-		int min_distance = current_distance;
-		Point rerouted_point = null;
-		for (Point p : adjacent_points) {
-			if (visit_point_tester.shouldVisitPoint(p)) {
-				int distance = getPathLengthWrapper(world, p, dst);
-				if (distance < min_distance) {
-					min_distance = distance;
-					rerouted_point = p;
+	// Plays a throwaway PlayerAI on a small made up map for warmup_ms, before the first real turn. By then the
+	// game classes are loaded and the hot paths (assignment, square safety, reRoute, the focus fire search)
+	// have been JIT compiled, instead of running in the interpreter during the first few timed turns.
+	// Only the first run in a JVM plays; the JIT's work isn't undone by a new PlayerAI. The budget is kept
+	// well under a turn's response time, in case the client asks for the first move straight after making us.
+	private static final class Warmup {
+		final static long BUDGET_MS = PARAMS.warmup_ms;
+		final static int MAP_SIZE = 16;
+		final static AtomicBoolean done = new AtomicBoolean(false);
+
+		public static void run() {
+			if (BUDGET_MS <= 0 || done.getAndSet(true)) {
+				return;
+			}
+
+			final long start = System.currentTimeMillis();
+			int num_turns = 0;
+			try {
+				final Random random = new Random(2016);
+				final PlayerAI ai = new PlayerAI(true);
+				final WarmupWorld tile_world = new WarmupWorld();
+				final ArrayList<Point> floor = tile_world.getFloor();
+
+				final UnitCore[] friendly_cores = new UnitCore[MAX_NUM_TEAM_MEMBERS];
+				final UnitCore[] enemy_cores = new UnitCore[MAX_NUM_TEAM_MEMBERS];
+				for (int i = 0; i < MAX_NUM_TEAM_MEMBERS; ++i) {
+					friendly_cores[i] = new UnitCore(Team.AMBER, UnitCallSign.values()[i]);
+					enemy_cores[i] = new UnitCore(Team.BLUE, UnitCallSign.values()[i]);
+				}
+
+				while (System.currentTimeMillis() - start < BUDGET_MS) {
+					// a fresh random position each turn, so every branch of doMove gets its turn
+					Collections.shuffle(floor, random);
+					for (int i = 0; i < MAX_NUM_TEAM_MEMBERS; ++i) {
+						randomizeUnit(friendly_cores[i], floor.get(i), random);
+						randomizeUnit(enemy_cores[i], floor.get(MAX_NUM_TEAM_MEMBERS + i), random);
+					}
+					for (ControlPointCore cp : tile_world.getControlPointCores()) {
+						cp.controllingTeam = Team.values()[random.nextInt(Team.values().length)];
+					}
+					for (PickupCore pickup : tile_world.getPickupCores()) {
+						pickup.pickedUp = random.nextInt(3) == 0;
+					}
 
-					if (distance == optimal_distance) {
-						break;
+					final EnemyUnit[] enemy_units = new EnemyUnit[MAX_NUM_TEAM_MEMBERS];
+					for (int i = 0; i < MAX_NUM_TEAM_MEMBERS; ++i) {
+						enemy_units[i] = new EnemyUnit(enemy_cores[i]);
+					}
+					final World world = new World(tile_world, enemy_units);
+					final FriendlyUnit[] friendly_units = new FriendlyUnit[MAX_NUM_TEAM_MEMBERS];
+					for (int i = 0; i < MAX_NUM_TEAM_MEMBERS; ++i) {
+						friendly_units[i] = new FriendlyUnit(friendly_cores[i], tile_world, world, enemy_units);
 					}
+
+					ai.doMove(world, enemy_units, friendly_units);
+					++num_turns;
 				}
+			} catch (RuntimeException e) {
+				// a broken warm-up only costs us speed, so never let it stop the bot from playing
+				System.out.println("Warm-up failed after " + num_turns + " turns (" + e + ")");
+				return;
 			}
+
+			System.out.println("Warm-up played " + num_turns + " turns in " + (System.currentTimeMillis() - start) + "ms");
 		}
 
-		return rerouted_point;
+		private static void randomizeUnit(UnitCore unit, Point position, Random random) {
+			unit.setPosition(position);
+			unit.health = random.nextInt(8) == 0 ? 0 : 1 + random.nextInt(Constants.DEFAULT_UNIT_HEALTH);
+			unit.weaponType = WeaponType.values()[random.nextInt(WeaponType.values().length)];
+			unit.numShields = random.nextInt(3);
+			unit.shieldedTurnsRemaining = random.nextInt(4) == 0 ? 1 + random.nextInt(Constants.SHIELD_DURATION_TURNS) : 0;
+			unit.nextAction = null;
+			unit.nextActionTarget = null;
+		}
 	}
 
-	static Point[] getAdjacentPoints(Point point) {
-		int x = point.getX();
-		int y = point.getY();
-
-		Point[] adjacent_points = new Point[8];
+	// A walled room with a few obstacles, a control point of each kind and one pickup of every type.
+	// The real CTZTileWorld answers path queries from the loaded map's NavigationCache, which doesn't
+	// describe this map, so those are answered with DistanceFields instead.
+	private static final class WarmupWorld extends CTZTileWorld {
+		private final HashMap<Point, DistanceField> fields_by_destination = new HashMap<>();
+		private final World world_for_paths;
+
+		public WarmupWorld() {
+			super(Warmup.MAP_SIZE, Warmup.MAP_SIZE);
+			final int last = Warmup.MAP_SIZE - 1;
+			for (int x = 0; x <= last; ++x) {
+				for (int y = 0; y <= last; ++y) {
+					final boolean is_border = x == 0 || y == 0 || x == last || y == last;
+					final boolean is_obstacle = (x == 5 && y >= 3 && y <= 7) || (x == last - 5 && y >= last - 7 && y <= last - 3)
+						|| ((x == 7 || x == 8) && (y == 7 || y == 8));
+					tiles[x][y] = is_border || is_obstacle ? TileType.WALL : TileType.FLOOR;
+				}
+			}
+			for (int i = 0; i < MAX_NUM_TEAM_MEMBERS; ++i) {
+				createSpawn(Team.AMBER, new Point(2 + i % 2, 2 + i / 2), UnitCallSign.values()[i]);
+				createSpawn(Team.BLUE, new Point(last - 2 - i % 2, last - 2 - i / 2), UnitCallSign.values()[i]);
+			}
+			createControlPoint(new Point(last / 2, 3), Team.NONE);
+			createControlPoint(new Point(last / 2, last - 3), Team.NONE);
+			createControlPoint(new Point(3, last - 3), Team.NONE);
+			getControlPointCores().get(2).isMainframe = true;
+			final PickupType[] types = PickupType.values();
+			for (int i = 0; i < types.length; ++i) {
+				createPickup(new Point(2 + 2 * i, last / 2 + (i % 2 == 0 ? -1 : 2)), types[i]);
+			}
+			setCollisionCache(WorldCollisionCache.createCache(this));
+			world_for_paths = new World(this, new EnemyUnit[0]);
+		}
 
-		adjacent_points[0] = new Point(x-1, y-1);
-		adjacent_points[1] = new Point(x-1, y);
-		adjacent_points[2] = new Point(x-1, y+1);
-		adjacent_points[3] = new Point(x, y+1);
-		adjacent_points[4] = new Point(x+1, y+1);
-		adjacent_points[5] = new Point(x+1, y);
-		adjacent_points[6] = new Point(x+1, y-1);
-		adjacent_points[7] = new Point(x, y-1);
+		public ArrayList<Point> getFloor() {
+			final ArrayList<Point> floor = new ArrayList<>();
+			for (int x = 0; x < width; ++x) {
+				for (int y = 0; y < height; ++y) {
+					if (tiles[x][y] == TileType.FLOOR) {
+						floor.add(new Point(x, y));
+					}
+				}
+			}
+			return floor;
+		}
 
-		return adjacent_points;
+		@Override
+		public Direction getNextDirectionInPath(Point start, Point end) {
+			DistanceField field = fields_by_destination.get(end);
+			if (field == null) {
+				field = DistanceField.compute(world_for_paths, end);
+				fields_by_destination.put(end, field);
+			}
+			final int distance = field.distanceAt(start);
+			if (distance == 0 || distance == DistanceField.UNREACHABLE) {
+				return Direction.NOWHERE;
+			}
+			for (Direction d : DistanceField.MOVE_DIRECTIONS) {
+				if (field.distanceAt(d.movePoint(start)) == distance - 1 && canPassFromPointInDirection(start, d, true, false)) {
+					return d;
+				}
+			}
+			return Direction.NOWHERE;
+		}
 	}
 
-	static int getPathLengthWrapper(World world, Point start, Point end) {
-		if (start.equals(end)) {
-			return 0;
+	// Every tuning knob, with its default. Loaded from PlayerAI.json, so a batch of matches can each
+	// run a different set without recompiling. The file is looked for at the path in the playerai.params
+	// system property, then next to the compiled bot (on the classpath). Keys left out keep their default.
+	// The launcher compiles into the bot's own folder, so copy PlayerAI.json next to PlayerAI.java there.
+	// The knobs are read once per JVM into static finals, so changing the file means a new match.
+	static final class Parameters {
+		final static String FILE_NAME = "PlayerAI.json";
+		final static String PATH_PROPERTY = "playerai.params";
+
+		boolean debug_prints = true;
+		double danger_val = 10.0;
+		double caution_val = 5.0;
+		boolean aggressive = true;
+		String strategy = "DefaultStrategy";
+
+		double mainframe_multiplier = 1.1;
+		double flag_multiplier = 1.2;
+		double enemy_owned_bonus = 0.05;
+		double contested_penalty = 0.1;
+		int contested_distance = 6;
+		double shoot_multiplier = 1.3;
+
+		double pickup_best_multiplier = 0.8;
+		double pickup_worst_multiplier = 2.0;
+		double shield_value = 0.6;
+		double detour_value = 0.5;
+		int detour_distance = 2;
+
+		double heavy_damage_fraction = 0.5;
+
+		long warmup_ms = 300;
+		boolean speculate = true;
+
+		public static Parameters load() {
+			final String path = System.getProperty(PATH_PROPERTY);
+			try (InputStream in = path != null ? new FileInputStream(new File(path)) : PlayerAI.class.getClassLoader().getResourceAsStream(FILE_NAME)) {
+				if (in == null) {
+					System.out.println("!!! " + FILE_NAME + " not found next to the bot, using the built-in defaults !!!");
+					return new Parameters();
+				}
+				return parse(new InputStreamReader(in, "UTF-8"));
+			} catch (IOException | JsonParseException e) {
+				System.out.println("Couldn't load parameters (" + e + "), using defaults");
+				return new Parameters();
+			}
 		}
 
-		int distance = world.getPathLength(start, end);
-
-		if (distance == 0) { // world.getPathLength returns 0 is path doesn't exist
-			distance = Integer.MAX_VALUE;
+		public static Parameters parse(Reader reader) {
+			final Parameters result = new Gson().fromJson(reader, Parameters.class);
+			return result == null ? new Parameters() : result;
 		}
-
-		return distance;
 	}
 
-	static boolean hasGoodWeapon(UnitClient unit) {
-		return unit.getCurrentWeapon() != WeaponType.MINI_BLASTER;
+	// The judgement calls doMove hands off. To try a different bot, add another implementation and name it
+	// with "strategy" in the parameter file, instead of editing doMove.
+	private static interface Strategy {
+		double captureMultiplier(CapturePlanner capture_planner, ControlPoint cp);
+		double pickupMultiplier(PickupPlanner pickup_planner, UnitClient unit, PickupType type);
+		double shootMultiplier();
+		double maxSquareDanger(); // don't step on squares getSquareSafety rates above this
+		boolean shouldShield(UnitClient me, int scaled_damage, int num_attackers, boolean can_shoot_back, int fight, int shield_first);
+		boolean shouldRetreat(UnitClient me, int fight); // fight is an EngagementTable outcome, maybe UNKNOWN
 	}
 
-	private static interface MultiplierMap{ double multiplierFor(int index); }
+	private static class DefaultStrategy implements Strategy {
+		final static double SHOOT_MULTIPLIER = PARAMS.shoot_multiplier;
+		final static double MAX_SQUARE_DANGER = AGGRESSIVE ? DANGER_VAL : CAUTION_VAL;
 
-	private static final class ObjectPathLengthMultiplier implements MultiplierMap {
-		private final World world;
-		private final ArrayList<Objective> objectives;
+		@Override
+		public double captureMultiplier(CapturePlanner capture_planner, ControlPoint cp) {
+			return capture_planner.multiplierFor(cp);
+		}
 
-		private ObjectPathLengthMultiplier(World world, ArrayList<Objective> objectives) {
-			this.world = world;
-			this.objectives = objectives;
+		@Override
+		public double pickupMultiplier(PickupPlanner pickup_planner, UnitClient unit, PickupType type) {
+			return pickup_planner.multiplierFor(unit, type);
 		}
 
 		@Override
-		public double multiplierFor(int index) {
-			Objective o = objectives.get(index);
-			switch (o.getType()) {
-			case PICKUP:
-				return 1.0;
-			case CAPTURE:
-				if (o.getControlPoint(world).isMainframe()) {
-					return 1.1;
-				} else {
-					return 1.2;
-				}
-			case SHOOT:
-				return 1.3;
-			default:
-				return 1.0;
-			}
+		public double shootMultiplier() { return SHOOT_MULTIPLIER; }
+
+		@Override
+		public double maxSquareDanger() { return MAX_SQUARE_DANGER; }
+
+		@Override
+		public boolean shouldShield(UnitClient me, int scaled_damage, int num_attackers, boolean can_shoot_back, int fight, int shield_first) {
+			return ShieldPlanner.shouldShield(me, scaled_damage, num_attackers, can_shoot_back, fight, shield_first);
+		}
+
+		@Override
+		public boolean shouldRetreat(UnitClient me, int fight) {
+			return fight != EngagementTable.UNKNOWN && fight < 0;
+		}
+	}
 
+	// name is a class nested in PlayerAI (eg. "DefaultStrategy"), since Strategy is private to it
+	private static Strategy makeStrategy(String name) {
+		try {
+			java.lang.reflect.Constructor<?> constructor = Class.forName(PlayerAI.class.getName() + "$" + name).getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return (Strategy)constructor.newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			System.out.println("Unknown strategy " + name + ", using DefaultStrategy");
+			return new DefaultStrategy();
 		}
 	}
 
-	static Integer[] assignOnePointToEach(Point[] points, UnitClient[] units, World world) {
-		return assignOnePointToEach(points, units, world, new MultiplierMap() { @Override public double multiplierFor(int index) {
+	static Integer[] assignOnePointToEach(Point[] points, UnitClient[] units, World world, MapTables tables) {
+		return assignOnePointToEach(points, units, world, tables, new MultiplierMap() { @Override public double multiplierFor(int index) {
 			return 1.0;
 		}});
 	}
-	static Integer[] assignOnePointToEach(Point[] points, UnitClient[] units, World world, MultiplierMap mm) {
+	static Integer[] assignOnePointToEach(Point[] points, UnitClient[] units, World world, MapTables tables, final MultiplierMap mm) {
+		return assignOnePointToEachPerUnit(points, units, world, tables, new UnitMultiplierMap() { @Override public MultiplierMap forUnit(UnitClient unit) {
+			return mm;
+		}});
+	}
+	static Integer[] assignOnePointToEachPerUnit(Point[] points, UnitClient[] units, World world, MapTables tables, UnitMultiplierMap umm) {
 		Integer[][] wanted_points = new Integer[units.length][units.length]; // index 0 is closest, 1 is farther, etc.
+		double[][] unit_distances = new double[units.length][];
 
 		for (int iunit = 0; iunit < units.length; ++iunit) {
 			UnitClient u = units[iunit];
-			final double distances[] = getPathingDistancesTo(u.getPosition(), points, world, mm);
+			final double distances[] = getSmallestPathingDistancesTo(u.getPosition(), points, world, tables, umm.forUnit(u), units.length);
+			unit_distances[iunit] = distances;
 
 			PriorityQueue<Integer> best_n = new PriorityQueue<Integer>(units.length, new Comparator<Integer>() {
 				@Override
@@ -506,7 +2759,7 @@ public class PlayerAI {
 		}
 
 
-		int lowest_total_distance = Integer.MAX_VALUE;
+		double lowest_total_distance = Double.MAX_VALUE;
 		int best_index = 0;
 
 		int comb_index_limit = 1;
@@ -518,7 +2771,7 @@ public class PlayerAI {
 			boolean in_use[] = new boolean[points.length];
 			int num_nopickups = 0;
 			boolean use_conflict = false;
-			int total_distance = 0;
+			double total_distance = 0;
 			for (int iunit = 0, mod = units.length; iunit < units.length; ++iunit, mod*=units.length) {
 				int sub_index = (comb_index%mod)/(mod/units.length);
 				Integer point_index = wanted_points[iunit][sub_index];
@@ -533,8 +2786,8 @@ public class PlayerAI {
 					in_use[point_index] = true;
 				}
 
-				// add to total
-				total_distance += getPathLengthWrapper(world, units[iunit].getPosition(), points[point_index]);
+				// add to total - weighted, so a unit that values a point more is preferred for it
+				total_distance += unit_distances[iunit][point_index];
 			}
 
 			int allowable_nopickups = Math.max(units.length - points.length,0);
@@ -583,21 +2836,54 @@ public class PlayerAI {
 		return result;
 	}
 
-	public static int[] getPathingDistancesTo(Point src, Point[] points, World world) {
+	public static int[] getPathingDistancesTo(Point src, Point[] points, World world, MapTables tables) {
 		int distances[] = new int[points.length];
 
 		for (int ipoint = 0; ipoint < points.length; ++ipoint) {
-			distances[ipoint] = getPathLengthWrapper(world, src, points[ipoint]);
+			distances[ipoint] = getPathLengthWrapper(world, tables, src, points[ipoint]);
 		}
 
 		return distances;
 	}
 
-	public static double[] getPathingDistancesTo(Point src, Point[] points, World world, MultiplierMap mm) {
+	public static double[] getPathingDistancesTo(Point src, Point[] points, World world, MapTables tables, MultiplierMap mm) {
 		double distances[] = new double[points.length];
 
 		for (int ipoint = 0; ipoint < points.length; ++ipoint) {
-			distances[ipoint] = getPathLengthWrapper(world, src, points[ipoint]) * mm.multiplierFor(ipoint);
+			distances[ipoint] = getPathLengthWrapper(world, tables, src, points[ipoint]) * mm.multiplierFor(ipoint);
+		}
+
+		return distances;
+	}
+
+	// Like getPathingDistancesTo, but only the how_many smallest (and any tied with them) are sure to be right;
+	// the rest may be POSITIVE_INFINITY instead. Points are measured in order of lower bound, until the lower
+	// bounds left are past the how_many-th smallest distance found.
+	public static double[] getSmallestPathingDistancesTo(Point src, Point[] points, World world, MapTables tables, MultiplierMap mm, int how_many) {
+		final double distances[] = new double[points.length];
+		final double multipliers[] = new double[points.length];
+		final double lower_bounds[] = new double[points.length];
+		final Integer order[] = new Integer[points.length];
+		for (int ipoint = 0; ipoint < points.length; ++ipoint) {
+			distances[ipoint] = Double.POSITIVE_INFINITY;
+			multipliers[ipoint] = mm.multiplierFor(ipoint);
+			lower_bounds[ipoint] = getPathLengthLowerBound(world, tables, src, points[ipoint]) * multipliers[ipoint];
+			order[ipoint] = ipoint;
+		}
+		Arrays.sort(order, new Comparator<Integer>() { @Override public int compare(Integer o1, Integer o2) {
+			return Double.compare(lower_bounds[o1], lower_bounds[o2]);
+		}});
+
+		final PriorityQueue<Double> smallest = new PriorityQueue<>(how_many + 1, Collections.reverseOrder()); // biggest on top
+		for (int ipoint : order) {
+			if (how_many <= 0 || (smallest.size() >= how_many && lower_bounds[ipoint] > smallest.peek())) {
+				break;
+			}
+			distances[ipoint] = getPathLengthWrapper(world, tables, src, points[ipoint]) * multipliers[ipoint];
+			smallest.add(distances[ipoint]);
+			if (smallest.size() > how_many) {
+				smallest.poll();
+			}
 		}
 
 		return distances;
@@ -653,6 +2939,10 @@ public class PlayerAI {
 			}
 		}
 
+		public static Objective makeShieldObjective() {
+			return new Objective(Type.SHIELD, new Point(-1,-1), UnitCallSign.ALPHA);
+		}
+
 		public static Objective makeDoNothingObjective() {
 			return new Objective(Type.NONE, new Point(-1,-1), UnitCallSign.ALPHA);
 		}
@@ -664,7 +2954,7 @@ public class PlayerAI {
 		}
 
 		enum Type {
-			PICKUP, CAPTURE, SHOOT, NONE;
+			PICKUP, CAPTURE, SHOOT, SHIELD, NONE;
 		}
 
 		final private Type type;
@@ -757,39 +3047,6 @@ public class PlayerAI {
 		return result;
 	}
 
-	public static ControlPoint[] getCaptureFlags(ControlPoint[] control_points) {
-		ArrayList<ControlPoint> result = new ArrayList<>(control_points.length);
-		for (int i = 0; i < control_points.length; ++i) {
-			if (control_points[i].isMainframe() == false) {
-				result.add(control_points[i]);
-			}
-		}
-
-		return result.toArray(new ControlPoint[result.size()]);
-	}
-
-	public static ControlPoint[] getMainframes(ControlPoint[] control_points) {
-		ArrayList<ControlPoint> result = new ArrayList<>(control_points.length);
-		for (int i = 0; i < control_points.length; ++i) {
-			if (control_points[i].isMainframe() == true) {
-				result.add(control_points[i]);
-			}
-		}
-
-		return result.toArray(new ControlPoint[result.size()]);
-	}
-
-	public static ControlPoint[] getNeutralOrEnemyControlPoints(ControlPoint[] control_points, Team our_team) {
-		ArrayList<ControlPoint> result = new ArrayList<>(control_points.length);
-		for (int i = 0; i < control_points.length; ++i) {
-			if (control_points[i].getControllingTeam() != our_team) {
-				result.add(control_points[i]);
-			}
-		}
-
-		return result.toArray(new ControlPoint[result.size()]);
-	}
-
 	public static ControlPoint[] getOurControlPoints(ControlPoint[] control_points, Team our_team) {
 		ArrayList<ControlPoint> result = new ArrayList<>(control_points.length);
 		for (int i = 0; i < control_points.length; ++i) {
@@ -842,8 +3099,8 @@ public class PlayerAI {
 		return w.canShooterShootTarget(x.getPosition(), y.getPosition(), x.getCurrentWeapon().getRange());
 	}
 
-	private static TurnData setMeToMove(FriendlyUnit me, Point p, Objective obj, TurnData turn_data, World w) {
-		turn_data.setData(me, obj, UnitAction.MOVE, p, w);
+	private static TurnData setMeToMove(FriendlyUnit me, Point p, Objective obj, TurnData turn_data, World w, MapTables tables) {
+		turn_data.setData(me, obj, UnitAction.MOVE, p, w, tables);
 		return turn_data;
 	}
 
@@ -856,17 +3113,35 @@ public class PlayerAI {
 		boolean can_shoot = canXShootY(me, enemy, w);
 
 		if (can_shoot) {
-			turn_data.setData(me, Objective.makeShootObjective(enemy), UnitAction.SHOOT, enemy.getPosition(), w);
+			turn_data.setData(me, Objective.makeShootObjective(enemy), UnitAction.SHOOT, enemy.getPosition(), w, null); // not a move, so no path needed
 		}
 		return turn_data;
 	}
 
-	private static Integer closestPointDjkstra(Point me, Point[] points, World w) {
+	// the first of the closest, or null if none can be reached. Points are measured in order of lower bound,
+	// so the ones that can't be closer than the closest so far are never searched for
+	private static Integer closestPointDjkstra(Point me, Point[] points, World w, MapTables tables) {
+		final int lower_bounds[] = new int[points.length];
+		final Integer order[] = new Integer[points.length];
+		for (int i = 0; i < points.length; ++i) {
+			lower_bounds[i] = getPathLengthLowerBound(w, tables, me, points[i]);
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() { @Override public int compare(Integer o1, Integer o2) {
+			return Integer.compare(lower_bounds[o1], lower_bounds[o2]);
+		}});
+
 		int min_dist = Integer.MAX_VALUE;
 		Integer best = null;
-		for (int i = 0; i < points.length; ++i) {
-			int len = getPathLengthWrapper(w, me, points[i]);
-			if (len < min_dist) {
+		for (int i : order) {
+			if (lower_bounds[i] > min_dist) {
+				break;
+			}
+			if (best != null && lower_bounds[i] == min_dist && i > best) {
+				continue; // could only tie, and ties go to the first
+			}
+			int len = getPathLengthWrapper(w, tables, me, points[i]);
+			if (len < min_dist || (best != null && len == min_dist && i < best)) {
 				best = i;
 				min_dist = len;
 			}
@@ -874,12 +3149,12 @@ public class PlayerAI {
 		return best;
 	}
 
-	private static boolean checkForNoneObjectives(ObjectiveSet objectives, FriendlyUnit[] f_units) {
+	private static boolean checkForNoneObjectives(ObjectiveSet objectives, FriendlyUnit[] f_units, boolean doPrinting) {
 		boolean found_none_objective = false;
 		for (int i = 0; i < f_units.length; ++i) {
 			if (objectives.getObjective(f_units[i]).isNone()) {
 				found_none_objective = true;
-				if (DEBUG_PRINTS){
+				if (doPrinting){
 					System.out.printf("%s's objective is still NONE!\n", f_units[i].getCallSign().toString());
 				}
 			}
@@ -928,6 +3203,10 @@ public class PlayerAI {
 			if (o.isNone() == true) { continue; }
 
 			UnitAction action = turn_data.getActionType(me);
+			if (action == null) { // holding position
+				me.standby();
+				continue;
+			}
 			switch (action) {
 			case ACTIVATE_SHIELD:
 				me.activateShield();
@@ -980,9 +3259,9 @@ public class PlayerAI {
 
 		public TurnData() { }
 
-		public void setData(UnitClient uc, Objective obj, UnitAction ua, Point p, World w) {
+		public void setData(UnitClient uc, Objective obj, UnitAction ua, Point p, World w, MapTables tables) {
 			if (ua == UnitAction.MOVE) {
-				setData(uc, obj, ua, w.getNextDirectionInPath(uc.getPosition(), p));
+				setData(uc, obj, ua, getNextDirectionWrapper(w, tables, uc.getPosition(), p));
 			} else {
 				setData(uc.getCallSign(), obj, ua, p);
 			}